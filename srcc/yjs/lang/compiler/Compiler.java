@@ -69,6 +69,8 @@ final class Compiler implements Opcodes {
     // global flags
     static final int GF_NO_IMPORT = 16;
     static final int GF_DOC       = 64;
+    // hashes are ES Map objects instead of plain js objects
+    static final int GF_ES_MAP    = 2048;
 
     static final String[] PRELOAD =
         new String[] {"std"};
@@ -100,6 +102,15 @@ final class Compiler implements Opcodes {
     //JSvars
     JSBlock mainJS = new JSBlock(null);
 	JSScope rootJSScope;
+    // inline templates of std functions
+    final Map jsInline = new HashMap();
+    // modules loaded by and warnings of the currently compiled source
+    // (see ModuleCache)
+    private List deps;
+    private List ownWarnings;
+    // set when the current compile depends on more than its source and
+    // the loaded modules (opaque types, classes, scripts)
+    boolean noCache;
     
 
     Compiler() {
@@ -111,6 +122,8 @@ final class Compiler implements Opcodes {
     void warn(CompileException ex) {
         ex.fn = currentSrc;
         warnings.add(ex);
+        if (ownWarnings != null)
+            ownWarnings.add(ex);
     }
 
     String createClassName(Ctx ctx, String outerClass, String nameBase) {
@@ -160,6 +173,7 @@ final class Compiler implements Opcodes {
     // if loadModule is true, the file is searched from the source path
     String readJSSource(final String name) {
         String fn = name + ".js";
+        noCache = true;
     	try {
             // Search from path. The localName is slashed package name.
             if (sourcePath.length == 0)
@@ -282,26 +296,34 @@ final class Compiler implements Opcodes {
         }
         sourcePath = sp;
     }
-    private char[] readInput(InputStream stream) throws IOException {
-        char[] buf = new char[0x8000];
+    // The returned array has exactly the source characters. The size
+    // is a guess of the character count (like the file length in bytes),
+    // when it is right, no copying is done.
+    private char[] readInput(InputStream stream, int size) throws IOException {
+        char[] buf = new char[size > 0 ? size : 0x8000];
         Reader reader = null;
+        int l = 0;
         try {
             reader = new java.io.InputStreamReader(stream, sourceCharset);
-            int n, l = 0;
-            while ((n = reader.read(buf, l, buf.length - l)) >= 0)
-                if (buf.length - (l += n) < 0x1000) {
-                    char[] tmp = new char[buf.length << 1];
-                    System.arraycopy(buf, 0, tmp, 0, l);
-                    buf = tmp;
-                }
+            for (int n; (n = reader.read(buf, l, buf.length - l)) >= 0;) {
+                if ((l += n) < buf.length)
+                    continue;
+                if ((n = reader.read()) < 0)
+                    return buf;
+                char[] tmp = new char[buf.length << 1];
+                System.arraycopy(buf, 0, tmp, 0, l);
+                buf = tmp;
+                buf[l++] = (char) n;
+            }
         } finally {
             if (reader != null)
                 reader.close();
             else
                 stream.close();
         }
-        return buf;
-    	
+        char[] res = new char[l];
+        System.arraycopy(buf, 0, res, 0, l);
+        return res;
     }
 
     private char[] readSourceFile(String parent, String fn,
@@ -327,7 +349,9 @@ final class Compiler implements Opcodes {
             if (compiled.containsKey(analyzer.canonicalFile))
                 return null;
         }
-        char[] buf = readInput(new FileInputStream(f));
+        long size = f.length();
+        char[] buf = readInput(new FileInputStream(f),
+                               size < 0x7fffffff ? (int) size : 0);
         if (parent != null)
             analyzer.canonicalFile = f.getCanonicalPath();
         analyzer.sourceTime = f.lastModified();
@@ -355,7 +379,7 @@ final class Compiler implements Opcodes {
             	String cfn = name + EXT;
             	InputStream is = this.getClass().getClassLoader().getResourceAsStream(cfn);
             	if(is != null)
-            		return readInput(is);	
+            		return readInput(is, 0);
             }
             String fn = analyzer.sourceName = name + EXT;
             if (sourcePath.length == 0)
@@ -378,7 +402,7 @@ final class Compiler implements Opcodes {
 	            	String cfn = name + EXT;
 	            	InputStream is = this.getClass().getClassLoader().getResourceAsStream(cfn);
 	            	if(is != null)
-	            		return readInput(is);	
+	            		return readInput(is, 0);
                 }
                 if (sep <= 0) // no package path, fail
                     throw new CompileException(0, 0, "Module " +
@@ -496,10 +520,7 @@ final class Compiler implements Opcodes {
         }
 
         name = parser.moduleName.toLowerCase();
-        if (definedClasses.containsKey(name))
-            throw new CompileException(0, 0, (definedClasses.get(name) == null
-                ? "Circular module dependency: "
-                : "Duplicate module name: ") + name.replace('/', '.'));
+        checkDefined(name);
         if (depDestDir != null && (analyzer.flags & CF_FORCE_COMPILE) == 0) {
             analyzer.targetFile =
                 new File(depDestDir, parser.moduleName.concat(".class"));
@@ -507,8 +528,24 @@ final class Compiler implements Opcodes {
         }
     }
 
-     ModuleType getType(YetiParser.Node node,
-                              String name) {
+    private void checkDefined(String name) {
+        if (definedClasses.containsKey(name))
+            throw new CompileException(0, 0, (definedClasses.get(name) == null
+                ? "Circular module dependency: "
+                : "Duplicate module name: ") + name.replace('/', '.'));
+    }
+
+    ModuleType getType(YetiParser.Node node, String name) {
+        ModuleType t = resolveType(node, name);
+        if (deps != null) {
+            deps.add(node);
+            deps.add(name);
+            deps.add(t);
+        }
+        return t;
+    }
+
+    private ModuleType resolveType(YetiParser.Node node, String name) {
         final String cname = name.toLowerCase();
         ModuleType t = (ModuleType) this.types.get(cname);
         if (t != null)
@@ -559,13 +596,36 @@ final class Compiler implements Opcodes {
                 return anal.resolvedType != null ? anal.resolvedType :
                     (ModuleType) compiled.get(anal.canonicalFile);
         }
+        String cacheKey =
+            (flags & (CF_PRINT_PARSE_TREE | CF_EVAL | CF_FORCE_COMPILE)) != 0
+                ? null : ModuleCache.key(anal.canonicalFile != null
+                            ? anal.canonicalFile : anal.sourceName,
+                            flags, globalFlags);
         RootClosure codeTree;
         Object oldCompiler = currentCompiler.get();
         currentCompiler.set(this);
         String oldCurrentSrc = currentSrc;
         currentSrc = anal.sourceName;
+        List oldDeps = deps, oldWarnings = ownWarnings;
+        boolean oldNoCache = noCache;
+        int inlines = jsInline.size();
+        deps = new ArrayList();
+        ownWarnings = new ArrayList();
+        noCache = false;
         try {
             try {
+                ModuleCache.Entry cached = cacheKey == null ? null
+                    : ModuleCache.get(cacheKey, code, preload);
+                if (cached != null) {
+                    ModuleType t = loadCached(cached, anal);
+                    if (t != null) {
+                        currentSrc = oldCurrentSrc;
+                        return t;
+                    }
+                    ModuleCache.remove(cacheKey);
+                    deps.clear();
+                    ownWarnings.clear();
+                }
                 anal.preload = preload;
                 codeTree = anal.toCode(code);
                 if (codeTree == null) {
@@ -599,6 +659,11 @@ final class Compiler implements Opcodes {
                 ModuleType mt = codeTree.moduleType;
                 this.mainJS.bind(mt.jsModuleVar, 
                 		new IIFEJSExpr(mt.jsCode),null);
+                if (cacheKey != null && !noCache)
+                    ModuleCache.put(cacheKey, new ModuleCache.Entry(code,
+                        preload, mt, deps.toArray(), ownWarnings.toArray(),
+                        jsInline.size() != inlines
+                            ? new HashMap(jsInline) : null));
             }
             compiled.put(anal.canonicalFile, codeTree.moduleType);
             classPath.existsCache.clear();
@@ -608,9 +673,39 @@ final class Compiler implements Opcodes {
             if (ex.fn == null)
                 ex.fn = anal.sourceName;
             throw ex;
+        } finally {
+            deps = oldDeps;
+            ownWarnings = oldWarnings;
+            noCache = oldNoCache;
         }
     }
 
+    // Registers the cached module like compile does with a compiled one.
+    // Returns null, when some loaded module is not the same anymore.
+    private ModuleType loadCached(ModuleCache.Entry e, YetiAnalyzer anal) {
+        ModuleType t = e.type;
+        checkDefined(t.name);
+        addClass(t.name, null, 0);
+        Object[] deps = e.deps;
+        for (int i = 0; i < deps.length; i += 3)
+            if (getType((YetiParser.Node) deps[i], (String) deps[i + 1])
+                    != deps[i + 2]) {
+                definedClasses.remove(t.name);
+                return null;
+            }
+        for (int i = 0; i < e.warnings.length; ++i)
+            warn((CompileException) e.warnings[i]);
+        if (e.inline != null)
+            jsInline.putAll(e.inline);
+        if (!"std".equals(t.name))
+            JSAnalyzer.initRootScope(this, preload, null);
+        types.put(t.name, t);
+        mainJS.bind(t.jsModuleVar, new IIFEJSExpr(t.jsCode), null);
+        compiled.put(anal.canonicalFile, t);
+        classPath.existsCache.clear();
+        return t;
+    }
+
 
 
 
@@ -175,6 +175,7 @@ final class MethodDesc extends YetiType {
             className = packageName + '/' + className;
         }
         cctx.addClass(className, null, cl.line);
+        cctx.noCache = true;
         JavaClass c = new JavaClass(className, topLevel, cl.line);
         scope.closure = c; // to proxy super-class closures
 
@@ -37,11 +37,12 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
 
 import yeti.lang.Core;
 
@@ -57,24 +58,80 @@ final public class JSAnalyzer extends YetiType {
 					.bind("true")
 					.bind("false")
 					.bind("throw");
+		static {
+			for (JSScope par = ROOT; par != null; par = par.parent)
+				if (par.yName == "true" || par.yName == "false")
+					par.constant = new JSLitExpr(par.yName, null);
+		}
 		
 		final JSScope parent;
 		final String yName;
 		final String jsName;
 		private final Set<String> fnScope;
+		private final JSScope outerFn; //function scope enclosing this one
 		final Set<String> freeVars;
-		List<JSSym> tcoArgs = null; //used by lambda to mark parent fn as tco
+		JSInline inline = null; //std function bound here
+		boolean std = false; //std member bound here
+		boolean int32 = false; //number bound here is a 32 bit integer
+		JSLitExpr constant = null; //literal value bound here
+		boolean mutable = false; //var bound here
+		boolean scripted = false; //some script names the var
+		boolean cell = false; //var in a fresh array each loop iteration
+		boolean esMap = false; //ES Map of a hash literal bound here
+		boolean slot = false; //pattern var, may share its js name
+		Set<String> loopInvariant = null; //set when the fn body is a loop
+		int refs = 0; //references to the binding
+		final List<JSFun> closures; //functions created directly in here
+		//bindings of the run of scopes ending here, by name (see find)
+		private final Map<String, JSScope> index;
+		private final JSScope skip; //scope above the indexed run
+		private final int run; //scopes in the unindexed run ending here
+
+		//length of the binding runs getting an index
+		private static final int INDEX_RUN = 16;
 		
 		private JSScope(JSScope parent, String yName, String jsName, boolean fnScope) {
+			this(parent, yName, jsName,
+					fnScope ? new HashSet<String>() : null);
+		}
+
+		private JSScope(JSScope parent, String yName, String jsName,
+				Set<String> fnScope) {
 			this.parent = parent;
-			this.yName = yName.intern();
-			this.jsName = jsName.intern();
-			this.fnScope = fnScope ? new HashSet<String>() : null;
-			this.freeVars = fnScope ? new HashSet<String>() : null;
+			this.yName = yName;
+			this.jsName = jsName;
+			this.fnScope = fnScope;
+			this.outerFn = fnScope != null && parent != null
+					? parent.findFnScope() : null;
+			this.freeVars = fnScope != null ? new HashSet<String>() : null;
+			this.closures = fnScope != null ? new ArrayList<JSFun>() : null;
+			int run = fnScope != null || parent == null ? 0
+					: parent.run + 1;
+			JSScope skip = null;
+			Map<String, JSScope> index = null;
+			if (run == INDEX_RUN) {
+				// the run is immutable, so its bindings can be indexed
+				index = new IdentityHashMap<String, JSScope>(run * 2);
+				for (skip = this; --run >= 0; skip = skip.parent)
+					if (!index.containsKey(skip.yName))
+						index.put(skip.yName, skip);
+				run = 0;
+			}
+			this.run = run;
+			this.skip = skip;
+			this.index = index;
 		}
 		JSScope fnScope(){
 			return new JSScope(this,"","",true);
 		}
+
+		/**
+		 * Function scope giving its names from the given set, so they
+		 * do not clash with the other functions using the same set.
+		 */
+		JSScope fnScope(Set<String> names){
+			return new JSScope(this,"","",names);
+		}
 		
 		JSScope findFnScope(){
 			JSScope par = this;
@@ -84,7 +141,7 @@ final public class JSAnalyzer extends YetiType {
 		JSScope bind(String yName) {
 			if(yName == null || "".equals(yName))
 				throw new IllegalArgumentException("yName is empty");
-			yName = yName.intern();
+			yName = Symbols.intern(yName);
 			//find jsName
 			JSScope par = findFnScope();
 			String jsName = yName;
@@ -92,33 +149,154 @@ final public class JSAnalyzer extends YetiType {
 				if(par.fnScope.contains(jsName))
 					jsName = yName + i;
 				else{
-					par.fnScope.add(jsName.intern());
+					jsName = Symbols.intern(jsName);
+					par.fnScope.add(jsName);
 					break;
 				}
 			}
 			return new JSScope(this, yName, jsName,false);
 		}
 		
+		/**
+		 * Reference to the binding of the name. Names are compared by
+		 * identity, so these must be Symbols (as the parser gives them).
+		 */
 		JSSym ref(String name,Node node){
-			name = name.intern();
-			JSScope par = this;
-			while(par != null && par.yName != name){
-				if(par.fnScope != null) //go out of scope -> free
-					par.freeVars.add(name);
-				par = par.parent;
-			}
+			JSScope[] crossed = new JSScope[2];
+			JSScope par = find(name, crossed);
+			free(name, crossed);
+			return ref(name, node, par);
+		}
+
+		/**
+		 * The code of the name used as a value: the literal of a
+		 * constant binding, or the reference to the binding (knowing
+		 * whether it is a 32 bit integer). Constants are not free in
+		 * the functions using them, so the function scopes passed are
+		 * marked only after the binding is found.
+		 */
+		JSExpr use(String name, Node node) {
+			JSScope[] crossed = new JSScope[2];
+			JSScope par = find(name, crossed);
+			if (par != null && par.constant != null)
+				return new JSLitExpr(par.constant.code, node);
+			free(name, crossed);
+			JSSym ref = ref(name, node, par);
+			ref.int32 = par != null && par.int32;
+			return ref;
+		}
+
+		private static JSSym ref(String name, Node node, JSScope par) {
 			if(par == null){
 				if(CHECK_SCOPE)
 					throw new CompileException(node, "Symbol "+name+" not declared");
 				else
 					return new JSSym(name,node);
 			}
-			return new JSSym(par.jsName, node);
+			++par.refs;
+			JSSym ref = new JSSym(par.jsName, node);
+			ref.binding = par;
+			return ref;
 		}
 		
 		JSSym decl(Node node) {
-			return new JSSym(this.jsName,node);
+			JSSym decl = new JSSym(this.jsName,node);
+			decl.binding = this;
+			return decl;
+		}
+
+		/**
+		 * The binding of the yeti name, when it is in the function of
+		 * this scope and changes with its loop (so closures must capture
+		 * it), otherwise null.
+		 */
+		JSScope loopVariant(String name, JSScope fnScope) {
+			JSScope par = binding(name);
+			return par != null && par.findFnScope() == fnScope
+					&& !fnScope.loopInvariant.contains(par.jsName)
+					? par : null;
+		}
+
+		/**
+		 * The inline template of the std function bound to the name.
+		 */
+		JSInline inline(String name) {
+			JSScope par = binding(name);
+			return par == null ? null : par.inline;
+		}
+
+		/**
+		 * Whether the name is bound to an ES Map built by a hash literal.
+		 */
+		boolean builtMap(String name) {
+			JSScope par = binding(name);
+			return par != null && par.esMap;
+		}
+
+		/**
+		 * Whether the name is bound to the member of std.
+		 */
+		boolean std(String name) {
+			JSScope par = binding(name);
+			return par != null && par.std;
+		}
+
+		/**
+		 * Whether the yeti name is bound at module level (in the given
+		 * module scope or above it) or not bound at all.
+		 */
+		boolean moduleLevel(String name, JSScope module) {
+			JSScope par = binding(name);
+			if (par == null)
+				return true;
+			par = par.findFnScope();
+			return par == module || par == ROOT;
+		}
+
+		private JSScope binding(String name) {
+			return find(name, null);
 		}
+
+		/**
+		 * Walks the scopes up to the binding of the name, jumping over
+		 * the indexed runs of bindings (those never contain function
+		 * scopes). The innermost and the outermost function scope passed
+		 * are stored in crossed, if given, for marking the name free.
+		 */
+		private JSScope find(String name, JSScope[] crossed) {
+			JSScope par = this;
+			while (par != null) {
+				if (par.index != null) {
+					JSScope bound = par.index.get(name);
+					if (bound != null)
+						return bound;
+					par = par.skip;
+				} else if (par.yName == name) {
+					return par;
+				} else {
+					if (crossed != null && par.fnScope != null) {
+						if (crossed[0] == null)
+							crossed[0] = par;
+						crossed[1] = par;
+					}
+					par = par.parent;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Marks the name free in the function scopes find passed
+		 * (go out of scope -> free).
+		 */
+		private static void free(String name, JSScope[] crossed) {
+			for (JSScope fn = crossed[0]; fn != null; fn = fn.outerFn) {
+				fn.freeVars.add(name);
+				if (fn == crossed[1])
+					break;
+			}
+		}
+
 		@Override
 		public String toString() {
 			JSScope par = this;
@@ -131,9 +309,107 @@ final public class JSAnalyzer extends YetiType {
 		}
 	}
 	private final Compiler compiler;
+	//variant classes used by the module, hoisted to the module start
+	private final Map<String, JSSym> tagClasses =
+			new LinkedHashMap<String, JSSym>();
+
+	//functions not capturing local variables, created once at module start
+	private final JSBlock lifted = new JSBlock(null);
+	private final Map<String, JSSym> memberFuns = new HashMap<String, JSSym>();
+	//regexes of literal patterns by flags and pattern
+	private final Map<String, JSSym> regexes = new HashMap<String, JSSym>();
+	//module level functions by name, for the std inline templates
+	private final Map<String, JSFun> moduleFuns = new HashMap<String, JSFun>();
+	private JSScope moduleScope;
+	//hashes are ES Maps (opt-in, see Compiler.GF_ES_MAP)
+	private final boolean esMaps;
 
 	private JSAnalyzer(Compiler compiler) {
 		this.compiler = compiler;
+		this.esMaps = (compiler.globalFlags & Compiler.GF_ES_MAP) != 0;
+	}
+
+	/**
+	 * How the map given by the node is subscripted (see JSMapRef).
+	 * A hash is surely an ES Map only when it is a hash literal or bound
+	 * to one, as a js object can be cast to a hash too.
+	 */
+	private int mapAccess(Node map, JSScope scope) {
+		if (!esMaps)
+			return JSMapRef.OBJ;
+		YType t = map.getType();
+		if (t == null || t.type != MAP)
+			return JSMapRef.ANY;
+		t = t.param[2].deref();
+		if (t == LIST_TYPE)
+			return JSMapRef.OBJ;
+		return t == MAP_TYPE && (map.kind == "list"
+				|| map.kind == "listop" && ((ObjectRefOp) map).right == null
+				|| map instanceof Sym && scope.builtMap(map.sym()))
+				? JSMapRef.ES_MAP : JSMapRef.ANY;
+	}
+
+	JSSym tagClass(String variant) {
+		JSSym sym = tagClasses.get(variant);
+		if (sym == null) {
+			sym = new JSSym();
+			tagClasses.put(variant, sym);
+		}
+		return sym;
+	}
+
+	private JSBlock moduleDecls() {
+		JSBlock ret = new JSBlock(null);
+		for (Map.Entry<String, JSSym> e : tagClasses.entrySet())
+			ret.bind(e.getValue(), JSCode.buildIn("_tagClass",
+					new JSLitExpr(Core.show(e.getKey()), null), null), null);
+		ret.addFlat(lifted);
+		return ret;
+	}
+
+	/**
+	 * Moves fun to the module start, if it uses only module level
+	 * bindings. Functions created at module level are left alone, and
+	 * so are functions with a script (which could use any binding).
+	 */
+	private void lift(JSFun fun) {
+		JSScope outer = fun.scope.parent.findFnScope();
+		if (fun.hoisted != null || outer == moduleScope || outer == JSScope.ROOT)
+			return;
+		for (String yn : fun.scope.freeVars)
+			if (!fun.scope.moduleLevel(yn, moduleScope))
+				return;
+		StringBuilder scripts = new StringBuilder();
+		scripts(fun.node, scripts);
+		if (scripts.length() == 0)
+			liftExpr(fun);
+	}
+
+	private void liftExpr(JSFun fun) {
+		fun.hoisted = new JSSym();
+		lifted.bind(fun.hoisted, fun.declaration(), fun.node);
+	}
+
+	/**
+	 * The regex of a literal pattern, created once at the module start
+	 * (where yeti compiles its literal patterns too), or null.
+	 */
+	private JSSym regex(Node pattern, String flags) {
+		if (!(pattern instanceof Str))
+			return null;
+		String str = ((Str) pattern).str;
+		String key = flags + '/' + str;
+		JSSym ret = regexes.get(key);
+		if (ret == null) {
+			ret = new JSSym();
+			lifted.bind(ret, new JSObjApply(new JSLitExpr("new RegExp",
+					pattern), new JSExpr[] {
+					new JSLitExpr(Core.show(str), pattern),
+					new JSLitExpr(Core.show(flags), pattern) }, pattern),
+					pattern);
+			regexes.put(key, ret);
+		}
+		return ret;
 	}
 
 	static final String NONSENSE_STRUCT = "No sense in empty struct";
@@ -173,10 +449,11 @@ final public class JSAnalyzer extends YetiType {
 			if ("throw" == sym)
 				return scope.ref("failWith", node);
 			if (Character.isUpperCase(sym.charAt(0))) {
-				return JSCode.buildIn("_tagCon", new JSLitExpr(Core.show(sym),
-						node), node);
+				if ("Some" == sym)
+					return new JSLitExpr("_tagS", node);
+				return new JSFieldRef(tagClass(sym), "con", node);
 			}
-			return scope.ref(sym,node);
+			return scope.use(sym, node);
 		}
 		if (node instanceof NumLit)
 			return new JSLitExpr(((NumLit) node).str(), node);
@@ -201,7 +478,7 @@ final public class JSAnalyzer extends YetiType {
 				if (l.right == null)
 					return list(l, l.arguments, scope);
 				return new JSMapRef(analyze(l.right, scope).toExpr(), analyze(
-						l.arguments[0], scope).toExpr());
+						l.arguments[0], scope).toExpr(), mapAccess(l.right, scope));
 			}
 			final XNode x = (XNode) node;
 			if (kind == "()")
@@ -220,7 +497,7 @@ final public class JSAnalyzer extends YetiType {
 				JSConcatStr ret = new JSConcatStr(x);
 				for (int i = 0; i < x.expr.length; ++i)
 					ret.add(analyze(x.expr[i], scope).toExpr());
-				return ret;
+				return ret.folded();
 			}
 			if (kind == "case-of")
 				return JSCaseCompiler.caseType(x, this, scope);
@@ -274,10 +551,15 @@ final public class JSAnalyzer extends YetiType {
 			if (opop == FIELD_OP) {
 				if (op.right.kind == "listop") {
 					return new JSMapRef(analyze(op.left, scope).toExpr(),
-							analyze(op.right, scope).toExpr());
+							analyze(op.right, scope).toExpr(),
+							mapAccess(op.left, scope));
 				}
-				return new JSFieldRef(analyze(op.left, scope).toExpr(),
-						getSelectorSym(op, op.right).sym, op);
+				JSExpr obj = analyze(op.left, scope).toExpr();
+				String field = getSelectorSym(op, op.right).sym;
+				JSExpr value = obj instanceof JSObjLiteral
+						? ((JSObjLiteral) obj).pureField(field) : null;
+				return value != null ? value
+						: new JSFieldRef(obj, field, op);
 			}
 			if (opop == ":=")
 				return new JSAssign(analyze(op.left, scope).toExpr(), analyze(
@@ -300,6 +582,8 @@ final public class JSAnalyzer extends YetiType {
 						scope).toExpr();
 				JSCode body = op.left == null ? new JSBlock(op) : analyze(
 						op.right, scope);
+				if (body instanceof JSBlock)
+					((JSBlock) body).effects();
 				return new JSWhile(cond, body, op);
 			}
 			if (opop == "-" && op.left == null)
@@ -330,11 +614,25 @@ final public class JSAnalyzer extends YetiType {
 				JSConcatStr ret = new JSConcatStr(op);
 				ret.add(analyze(op.left, scope).toExpr());
 				ret.add(analyze(op.right, scope).toExpr());
-				return ret;
+				return ret.folded();
 			}
 			if (opop == "|>")
 				return apply(op, analyze(op.right, scope).toExpr(), op.left,
 						scope);
+			JSSym re;
+			if ((opop == "=~" || opop == "!~") && scope.std(opop)
+					&& (re = regex(op.right, "")) != null) {
+				JSExpr test = new JSObjApply(new JSFieldRef(re, "test", op),
+						new JSExpr[] { analyze(op.left, scope).toExpr() }, op);
+				return opop == "=~" ? test : JSBinOp.create("not", null, test,
+						op, scope);
+			}
+			if (opop == "in" && scope.std(opop)
+					&& mapAccess(op.right, scope) == JSMapRef.ES_MAP) {
+				JSExpr key = analyze(op.left, scope).toExpr();
+				return new JSObjApply(new JSFieldRef(analyze(op.right, scope)
+						.toExpr(), "has", op), new JSExpr[] { key }, op);
+			}
 			return JSBinOp.create(opop, analyze(op.left, scope).toExpr(),
 					analyze(op.right, scope).toExpr(), op,scope);
 		}
@@ -401,7 +699,8 @@ final public class JSAnalyzer extends YetiType {
 		return tr.block();
 	}
 
-	private JSExpr createTag(final String variant, Node valueNd, JSScope scope) {
+	private JSExpr createTag(final String variant, Node valueNd,
+			Node where, JSScope scope) {
 		if ("None".equals(variant)) {
 			return JSCode.NULL;
 		}
@@ -415,27 +714,168 @@ final public class JSAnalyzer extends YetiType {
 				return JSCode.buildIn("_tagS", value, valueNd).toExpr();
 			}
 		} else {
-			return new JSExpr(valueNd) {
+			final JSSym cls = tagClass(variant);
+			return new JSExpr(where) {
 				int precedence() {
 					return PREC_APPLY;
 				}
 
 				void code(CodeBuilder bd) {
-					bd.add("new _tag(").add(Core.show(variant)).add(", ")
-							.add(value).add(")");
+					bd.add("new ").add(cls).add("(").add(value).add(")");
 				}
 
 			};
 		}
 	}
 
+	private void moduleFun(Bind bind, JSCode code) {
+		Node value = bind.expr;
+		while (value instanceof BinOp && (((BinOp) value).op == "is"
+				|| ((BinOp) value).op == "unsafely_as"))
+			value = ((BinOp) value).right;
+		JSFun fun = code instanceof JSFun ? (JSFun) code
+				: value instanceof Sym ? moduleFuns.get(value.sym()) : null;
+		if (fun == null || bind.var)
+			moduleFuns.remove(bind.name);
+		else
+			moduleFuns.put(bind.name, fun);
+	}
+
+	/**
+	 * Applications of the std collection functions to a list or array
+	 * without the test for the kind of the collection done by the std
+	 * function itself. Same for hashes, when these are ES Maps.
+	 */
+	private JSCode collectionFun(String name, List<Node> args,
+			List<Node> applies, JSScope scope) {
+		int arity = name == "delete" ? 2 : 1;
+		if (name != "length" && name != "empty?" && name != "list"
+				&& name != "copy" && name != "delete"
+				|| args.size() < arity || !scope.std(name))
+			return null;
+		YType t = args.get(0).getType();
+		if (t == null || (t = t.deref()).type != MAP)
+			return null;
+		boolean hash = mapAccess(args.get(0), scope) == JSMapRef.ES_MAP;
+		if (hash ? name == "list" : t.param[2].deref() != LIST_TYPE
+				// a list can be lazy, only arrays surely have length
+				|| (name == "length" || name == "copy")
+					&& t.param[1].deref().type != NUM)
+			return null;
+		Node where = applies.get(arity - 1);
+		JSExpr a = analyze(args.get(0), scope).toExpr();
+		JSCode ret;
+		if (hash) {
+			if (name == "length" || name == "empty?") {
+				ret = new JSFieldRef(a, "size", where);
+				if (name == "empty?")
+					ret = new JSBinOp("===", ret.toExpr(),
+							new JSLitExpr("0", where), where);
+			} else if (name == "copy") {
+				ret = new JSObjApply(new JSLitExpr("new Map", where),
+						new JSExpr[] { a }, where);
+			} else {
+				JSExpr k = analyze(args.get(1), scope).toExpr();
+				ret = new JSBlock("seq", where).add(
+						new JSObjApply(new JSFieldRef(a, "delete", where),
+								new JSExpr[] { k }, where)).add(JSCode.UNDEF);
+			}
+		} else if (name == "length") {
+			ret = new JSFieldRef(a, "length", where);
+		} else if (name == "empty?") {
+			ret = new JSBinOp("===", new JSFieldRef(a, "length", where),
+					new JSLitExpr("0", where), where);
+		} else if (name == "list") {
+			ret = a;
+		} else if (name == "copy") {
+			ret = new JSObjApply(new JSFieldRef(a, "slice", where),
+					new JSExpr[] { new JSLitExpr("0", where) }, where);
+		} else {
+			JSExpr k = analyze(args.get(1), scope).toExpr();
+			ret = new JSBlock("seq", where).add(
+					new JSObjApply(new JSFieldRef(a, "splice", where),
+							new JSExpr[] { k, new JSLitExpr("1", where) },
+							where)).add(JSCode.UNDEF);
+		}
+		for (int i = arity; i < args.size(); ++i)
+			ret = JSApply.create(ret.toExpr(),
+					analyze(args.get(i), scope).toExpr(), applies.get(i));
+		return ret;
+	}
+
+	/**
+	 * Applications of the std regex functions to a literal pattern get
+	 * the pattern compiled already.
+	 */
+	private JSCode regexFun(String name, List<Node> args,
+			List<Node> applies, JSScope scope) {
+		String flags = name == "strSplit" ? "" : name == "substAll"
+				|| name == "matchAll" || name == "like" ? "g" : null;
+		JSSym re;
+		if (flags == null || !scope.std(name)
+				|| (re = regex(args.get(0), flags)) == null)
+			return null;
+		JSCode ret = JSApply.create(scope.ref(name, applies.get(0)), re,
+				applies.get(0));
+		for (int i = 1; i < args.size(); ++i)
+			ret = JSApply.create(ret.toExpr(),
+					analyze(args.get(i), scope).toExpr(), applies.get(i));
+		return ret;
+	}
+
+	/**
+	 * Puts a small std function in place of its full application
+	 * (the arguments are in args, head is the function).
+	 */
+	private JSCode inline(Node head, List<Node> args, List<Node> applies,
+			JSScope scope) {
+		String name = null;
+		if (head instanceof Sym) {
+			name = head.sym();
+		} else if (head instanceof BinOp && ((BinOp) head).op == "."
+				&& ((BinOp) head).left != null) {
+			name = ".";
+			args.add(0, ((BinOp) head).right);
+			args.add(0, ((BinOp) head).left);
+			applies.add(0, head);
+			applies.add(0, head);
+		}
+		JSInline template = name == null ? null : scope.inline(name);
+		if (template == null || args.size() < template.arity)
+			return null;
+		JSExpr[] values = new JSExpr[template.arity];
+		for (int i = 0; i < values.length; ++i)
+			values[i] = analyze(args.get(i), scope).toExpr();
+		JSExpr ret = template.apply(values,
+				applies.get(template.arity - 1));
+		if (ret == null) {
+			// the analyzed arguments are used for the normal call
+			int i = 0;
+			if (name == ".") {
+				ret = JSBinOp.create(name, values[0], values[1], head, scope)
+						.toExpr();
+				i = 2;
+			} else {
+				ret = analyze(head, scope).toExpr();
+			}
+			for (; i < values.length; ++i)
+				ret = JSApply.create(ret, values[i], applies.get(i))
+						.toExpr();
+		}
+		JSCode code = ret;
+		for (int i = template.arity; i < args.size(); ++i)
+			code = JSApply.create(code.toExpr(),
+					analyze(args.get(i), scope).toExpr(), applies.get(i));
+		return code;
+	}
+
 	JSCode binApply(BinOp bfun, JSScope scope) {
 		// check for Variant
 		String sn = null;
 		if (bfun.left instanceof Sym
 				&& Character
 						.isUpperCase((sn = ((Sym) bfun.left).sym).charAt(0))) {
-			return createTag(sn, bfun.right, scope);
+			return createTag(sn, bfun.right, bfun, scope);
 		}
 		// otherwise throw gets escaped to use it like a function
 		if (bfun.left instanceof Sym
@@ -443,6 +883,22 @@ final public class JSAnalyzer extends YetiType {
 			return JSApply.create(scope.ref("throw", bfun.left),
 					analyze(bfun.right, scope).toExpr(), bfun);
 		}
+		List<Node> args = new ArrayList<Node>();
+		List<Node> applies = new ArrayList<Node>();
+		Node head = bfun;
+		for (BinOp op; head instanceof BinOp
+				&& (op = (BinOp) head).op == ""; head = op.left) {
+			args.add(0, op.right);
+			applies.add(0, op);
+		}
+		JSCode inlined = head instanceof Sym
+				? collectionFun(head.sym(), args, applies, scope) : null;
+		if (inlined == null && head instanceof Sym)
+			inlined = regexFun(head.sym(), args, applies, scope);
+		if (inlined == null)
+			inlined = inline(head, args, applies, scope);
+		if (inlined != null)
+			return inlined;
 		return JSApply.create(analyze(bfun.left, scope).toExpr(),
 				analyze(bfun.right, scope).toExpr(), bfun);
 	}
@@ -473,18 +929,30 @@ final public class JSAnalyzer extends YetiType {
 
 		JSSym fun = scope.ref(sym, section);
 		JSSym tv = new JSSym();
-		JSExpr arg = analyze(section.expr[1], scope).toExpr();
+		Node argNd = section.expr[1];
+		JSExpr arg = analyze(argNd, scope).toExpr();
 		JSCode apl = JSApply.create(JSApply.create(fun, tv, section).toExpr(),
 				arg, section);
-		return new JSFun(null, tv, apl, section);
+		JSFun ret = new JSFun(null, tv, apl, section);
+		// sections of constants like (+ 1) need to be created only once
+		if (scope.moduleLevel(sym, moduleScope)
+				&& (arg instanceof JSLitExpr || argNd instanceof Sym
+						&& scope.moduleLevel(argNd.sym(), moduleScope))
+				&& scope.findFnScope() != moduleScope)
+			liftExpr(ret);
+		return ret;
 	}
 
 	JSExpr selectMemberFun(String[] fields, Node nd) {
+		String key = Arrays.asList(fields).toString();
+		JSSym ref = memberFuns.get(key);
+		if (ref != null)
+			return ref;
 
 		final JSSym tv = new JSSym();
 		final JSFieldSelector sel = new JSFieldSelector(fields, nd);
 
-		return new JSFun(null, tv, new JSExpr(nd) {
+		JSFun fun = new JSFun(null, tv, new JSExpr(nd) {
 			void code(CodeBuilder bd) {
 				bd.add(tv).add(sel);
 			};
@@ -493,7 +961,10 @@ final public class JSAnalyzer extends YetiType {
 				return PREC_FIELD;
 			}
 		}, nd);
-
+		// the same selector function serves the whole module
+		liftExpr(fun);
+		memberFuns.put(key, fun.hoisted);
+		return fun.hoisted;
 	}
 
 	Sym getSelectorSym(Node op, Node sym) {
@@ -507,48 +978,132 @@ final public class JSAnalyzer extends YetiType {
 		return (Sym) sym;
 	}
 
-	JSStat cond(XNode condition, JSScope scope) {
+	JSCode cond(XNode condition, JSScope scope) {
 		JSIfBuilder jsif = new JSIfBuilder(condition);
+		Node otherwise = null;
 
+		// branches with constant conditions are decided here
 		for (;;) {
 			JSExpr cond = analyze(condition.expr[0], scope).toExpr();
-			JSCode body = analyze(condition.expr[1], scope);
-			jsif.add(cond, body);
+			Boolean known = cond instanceof JSLitExpr
+					? ((JSLitExpr) cond).bool() : null;
+			if (known == Boolean.TRUE) {
+				otherwise = condition.expr[1];
+				break;
+			}
+			if (known == null)
+				jsif.add(cond, analyze(condition.expr[1], scope));
 
-			if (condition.expr[2].kind != "if")
+			if (condition.expr[2].kind != "if") {
+				if (condition.expr[2].kind != "fi")
+					otherwise = condition.expr[2];
 				break;
+			}
 
 			condition = (XNode) condition.expr[2];
 		}
-		if (condition.expr[2].kind != "fi")
-			jsif.add(null, analyze(condition.expr[2], scope));
+		if (jsif.clauses.isEmpty())
+			return otherwise == null ? JSCode.UNDEF
+					: analyze(otherwise, scope);
+		if (otherwise != null)
+			jsif.add(null, analyze(otherwise, scope));
 
 		return jsif.block();
 	}
 
 	JSStat withStruct(BinOp with, JSScope scope) {
-
 		JSBlock ret = new JSBlock("with", with);
-		final JSSym tv = new JSSym();
-		final JSSym tvr = new JSSym();
-		final JSSym tv1 = new JSSym();
-		final JSSym tv2 = new JSSym();
+		JSExpr src = analyze(with.left, scope).toExpr();
+		if (!(src instanceof JSSym)) {
+			JSSym tv1 = new JSSym();
+			ret.bind(tv1, src, with);
+			src = tv1;
+		}
+
+		// the override fields are always known, the source fields only
+		// when the source has a closed struct type
+		YType st = with.left.getType();
+		YType ot = with.right.getType();
+		Map srcFields = st != null && st.type == STRUCT
+				? st.allowedMembers : null;
+		Set<String> names = new HashSet<String>();
+		if (ot != null && ot.allowedMembers != null)
+			names.addAll(ot.allowedMembers.keySet());
+		if (ot != null && ot.requiredMembers != null)
+			names.addAll(ot.requiredMembers.keySet());
+
+		// a struct literal on the right side is not allocated at all,
+		// its field values go directly into the result
+		Map<String, JSExpr> override = null;
+		if (with.right.kind == "struct" && !names.isEmpty())
+			override = withFields((XNode) with.right, scope);
+		JSSym right = null;
+		if (override == null) {
+			right = new JSSym();
+			ret.bind(right, analyze(with.right, scope), with);
+			override = new HashMap<String, JSExpr>();
+			for (String name : names)
+				override.put(name, new JSFieldRef(right, name, with));
+		}
 
+		if (srcFields != null && !names.isEmpty()) {
+			JSObjLiteral lit = new JSObjLiteral(with);
+			Set<String> all = new HashSet<String>(srcFields.keySet());
+			all.addAll(names);
+			for (String name : JSObjLiteral.fieldOrder(all)) {
+				JSExpr v = override.get(name);
+				lit.add(name, v != null ? v : new JSFieldRef(src, name, with));
+			}
+			ret.add(lit);
+			return ret;
+		}
+
+		// open source struct: copy its own fields and set the override
+		// fields on the copy
+		final JSSym tvr = new JSSym();
 		ret.bind(tvr, JSCode.EMPTY_MAP, with);
-		ret.bind(tv1, analyze(with.left, scope), with);
-		ret.bind(tv2, analyze(with.right, scope), with);
+		ret.add(copyFields(tvr, src, with));
+		if (names.isEmpty()) // no type information (repl)
+			ret.add(copyFields(tvr, right, with));
+		for (String name : JSObjLiteral.fieldOrder(names))
+			ret.add(new JSAssign(new JSFieldRef(tvr, name, with),
+					override.get(name), with).toStat());
+		ret.add(tvr);
+		return ret;
+	}
 
-		ret.add(new JSStat(with) {
+	private static JSStat copyFields(final JSSym to, final JSExpr from,
+			Node where) {
+		final JSSym tv = new JSSym();
+		return new JSStat(where) {
 			void code(CodeBuilder bd) {
-				bd.add("for( var ").add(tv).add(" in ").add(tv1).add(")")
-						.add(tvr).add("[").add(tv).add("] = ").add(tv1)
-						.add("[").add(tv).add("];");
-				bd.nl().add("for( ").add(tv).add(" in ").add(tv2).add(")")
-						.add(tvr).add("[").add(tv).add("] = ").add(tv2)
-						.add("[").add(tv).add("];");
-			}
-		});
-		ret.add(tvr);
+				bd.add("for(var ").add(tv).add(" in ").add(from).add(")")
+						.ind().nl().add("if(").add(from)
+						.add(".hasOwnProperty(").add(tv).add(")) ")
+						.add(to).add("[").add(tv).add("] = ").add(from)
+						.add("[").add(tv).add("];").dnd();
+			}
+		};
+	}
+
+	/**
+	 * Field values of a struct literal used as with override, or null when
+	 * the literal has function fields which need the struct scope.
+	 */
+	private Map<String, JSExpr> withFields(XNode st, JSScope scope) {
+		Node[] nodes = st.expr;
+		Map<String, Node> fields = new HashMap<String, Node>();
+		for (int i = 0; i < nodes.length; ++i) {
+			Bind field = getField(nodes[i]);
+			if (fields.containsKey(field.name))
+				duplicateField(field);
+			if (!field.noRec && asLambda(field.expr) != null)
+				return null;
+			fields.put(field.name, field.expr);
+		}
+		Map<String, JSExpr> ret = new HashMap<String, JSExpr>();
+		for (String name : JSObjLiteral.fieldOrder(fields.keySet()))
+			ret.put(name, analyze(fields.get(name), scope).toExpr());
 		return ret;
 	}
 
@@ -558,8 +1113,12 @@ final public class JSAnalyzer extends YetiType {
 			Iterator j = m.type.allowedMembers.entrySet().iterator();
 			while (j.hasNext()) {
 				Map.Entry e = (Map.Entry) j.next();
-				String name = ((String) e.getKey()).intern();
+				String name = Symbols.intern((String) e.getKey());
 				scope = scope.bind(name);
+				if ("std".equals(m.name)) {
+					scope.inline = (JSInline) compiler.jsInline.get(name);
+					scope.std = true;
+				}
 				ret.bind(scope.decl(where), new JSFieldRef(m.jsModuleVar,
 						name, where), where);
 			}
@@ -597,9 +1156,122 @@ final public class JSAnalyzer extends YetiType {
 		return new ScopedCode(scope,stat);
 	}
 
+	/**
+	 * Collects the js scripts in the node, which may assign any binding.
+	 */
+	static void scripts(Node node, StringBuilder to) {
+		if (node instanceof XNode) {
+			Node[] expr = ((XNode) node).expr;
+			if (node.kind == "script" && expr[0] instanceof Str)
+				to.append(((Str) expr[0]).str).append('\n');
+			else if (expr != null)
+				for (int i = 0; i < expr.length; ++i)
+					scripts(expr[i], to);
+		} else if (node instanceof BinOp) {
+			scripts(((BinOp) node).left, to);
+			scripts(((BinOp) node).right, to);
+			if (node instanceof ObjectRefOp
+					&& ((ObjectRefOp) node).arguments != null)
+				for (Node arg : ((ObjectRefOp) node).arguments)
+					scripts(arg, to);
+		} else if (node instanceof Seq) {
+			for (Node st : ((Seq) node).st)
+				scripts(st, to);
+		} else if (node instanceof Bind) {
+			scripts(((Bind) node).expr, to);
+		}
+	}
+
+	/**
+	 * The list argument, when the binding is an array<number> created by
+	 * std array, which is only subscripted and measured by the rest of
+	 * the sequence. Such an array can be a Float64Array, as no code out
+	 * of the sequence sees it and it never grows.
+	 */
+	private Node numberArray(Bind bind, Seq seq, int at, JSScope scope) {
+		BinOp apply;
+		YType t;
+		if (bind.var || seq.seqKind == Seq.EVAL
+				|| !(bind.expr instanceof BinOp)
+				|| (apply = (BinOp) bind.expr).op != ""
+				|| !(apply.left instanceof Sym)
+				|| ((Sym) apply.left).sym != "array"
+				|| !scope.std("array")
+				|| (t = bind.expr.getType()) == null || t.type != MAP
+				|| t.param[0].deref().type != NUM)
+			return null;
+		StringBuilder scripts = new StringBuilder();
+		for (int i = at + 1; i < seq.st.length; ++i) {
+			if (!arrayUses(seq.st[i], bind.name))
+				return null;
+			scripts(seq.st[i], scripts);
+		}
+		return scripts.indexOf(bind.name) < 0 ? apply.right : null;
+	}
+
+	/**
+	 * Whether the name is only used as a[i], length a or empty? a.
+	 */
+	private static boolean arrayUses(Node node, String name) {
+		if (node instanceof Sym)
+			return ((Sym) node).sym != name;
+		if (node instanceof ObjectRefOp && node.kind == "listop") {
+			ObjectRefOp ref = (ObjectRefOp) node;
+			if (ref.right != null && !(ref.right instanceof Sym
+					&& ((Sym) ref.right).sym == name)
+					&& !arrayUses(ref.right, name))
+				return false;
+			for (Node arg : ref.arguments)
+				if (!arrayUses(arg, name))
+					return false;
+			return true;
+		}
+		if (node instanceof BinOp) {
+			BinOp op = (BinOp) node;
+			if (op.op == "" && op.left instanceof Sym
+					&& op.right instanceof Sym
+					&& ((Sym) op.right).sym == name) {
+				String f = ((Sym) op.left).sym;
+				return f == "length" || f == "empty?";
+			}
+			if (op.left != null && !arrayUses(op.left, name)
+					|| op.right != null && !arrayUses(op.right, name))
+				return false;
+			if (op instanceof ObjectRefOp
+					&& ((ObjectRefOp) op).arguments != null)
+				for (Node arg : ((ObjectRefOp) op).arguments)
+					if (!arrayUses(arg, name))
+						return false;
+			return true;
+		}
+		if (node instanceof XNode) {
+			Node[] expr = ((XNode) node).expr;
+			if (expr != null)
+				for (int i = 0; i < expr.length; ++i)
+					if (expr[i] != null && !arrayUses(expr[i], name))
+						return false;
+			return true;
+		}
+		if (node instanceof Seq) {
+			for (Node st : ((Seq) node).st)
+				if (!arrayUses(st, name))
+					return false;
+			return true;
+		}
+		if (node instanceof Bind) {
+			// the std functions must not be shadowed
+			String n = ((Bind) node).name;
+			return n != name && n != "length" && n != "empty?"
+					&& arrayUses(((Bind) node).expr, name);
+		}
+		return true;
+	}
+
 	ScopedCode analSeq(Seq seq, JSScope scope) {
 		Node[] nodes = seq.st;
 		JSBlock stat = new JSBlock("seq",seq);
+		String scripts = null;
+		List<Object> pureBinds = new ArrayList<Object>(); // scope, decl
 
 		for (int i = 0; i < nodes.length; ++i) {
 			if (nodes[i] instanceof Bind) {
@@ -609,19 +1281,81 @@ final public class JSAnalyzer extends YetiType {
 				if ((lambda = asLambda(bind.expr)) != null) {
 					bind.expr = lambda;
 					scope = scope.bind(bind.name);
-					valueCode = lambda(lambda, scope, bind.var);
+					valueCode = lambda(lambda, scope, bind.var,
+							bind.noRec ? null : scope.decl(bind), null);
 				} else {
-					valueCode = analyze(bind.expr, scope);
+					Node numbers = numberArray(bind, seq, i, scope);
+					valueCode = numbers == null ? analyze(bind.expr, scope)
+							: new JSObjApply(new JSLitExpr("new Float64Array",
+									bind), new JSExpr[] { numbers.kind == "list"
+									? analyze(numbers, scope).toExpr()
+									: JSCode.buildIn("_array", analyze(numbers,
+											scope).toExpr(), bind).toExpr() },
+									bind);
 					scope = scope.bind(bind.name);
+					scope.esMap = !bind.var && valueCode instanceof JSMap
+							&& ((JSMap) valueCode).esMap;
+					// small literals are put in place of the references
+					// and 32 bit integers are remembered, unless some
+					// script could assign the binding
+					boolean constant = valueCode instanceof JSLitExpr
+							&& ((JSLitExpr) valueCode).constant();
+					if (!bind.var && (constant || valueCode instanceof JSExpr
+							&& JSBinOp.int32((JSExpr) valueCode))) {
+						if (scripts == null) {
+							StringBuilder sb = new StringBuilder();
+							scripts(seq, sb);
+							scripts = sb.toString();
+						}
+						if (scripts.indexOf(scope.jsName) < 0
+								&& scripts.indexOf(bind.name) < 0) {
+							if (constant)
+								scope.constant = (JSLitExpr) valueCode;
+							else
+								scope.int32 = true;
+						}
+					}
 					// if (code instanceof LoadModule)
 					// scope = explodeStruct(bind, (LoadModule) code, scope,
 					// bind.name.concat("."), depth - 1, false);
 				}
+				if (bind.var) {
+					// shared with closures through a cell, see loopClosures
+					if (scripts == null) {
+						StringBuilder sb = new StringBuilder();
+						scripts(seq, sb);
+						scripts = sb.toString();
+					}
+					scope.mutable = true;
+					scope.scripted = scripts.indexOf(scope.jsName) >= 0
+							|| scripts.indexOf(bind.name) >= 0;
+				}
 				stat.bind(scope.decl(bind), valueCode, bind);
+				if (scope.findFnScope() == moduleScope)
+					moduleFun(bind, valueCode);
+				if (valueCode instanceof JSExpr
+						&& JSBlock.pure((JSExpr) valueCode)) {
+					pureBinds.add(scope);
+					pureBinds.add(stat.last());
+				}
 			} else if (nodes[i].kind == "struct-bind") {
 				XNode x = (XNode) nodes[i];
-				JSSym helperVar = new JSSym();
-				stat.bind(helperVar, analyze(x.expr[1], scope), x);
+				JSCode value = analyze(x.expr[1], scope);
+				JSSym helperVar;
+				JSBlock block;
+				// a variable is destructured directly, without copying it
+				if (value instanceof JSSym) {
+					helperVar = (JSSym) value;
+				} else if (value instanceof JSBlock
+						&& (block = (JSBlock) value).kind != null
+						&& block.last() instanceof JSSym) {
+					helperVar = (JSSym) block.last();
+					block.stats.remove(block.stats.size() - 1);
+					stat.add(block);
+				} else {
+					helperVar = new JSSym();
+					stat.bind(helperVar, value, x);
+				}
 				ScopedCode sc = bindStruct(helperVar, (XNode) x.expr[0], scope);
 				scope = sc.scope;
 				stat.add(sc.code);
@@ -646,20 +1380,64 @@ final public class JSAnalyzer extends YetiType {
 				// nothing
 			} else if (nodes[i].kind == "class") {
 				throw new CompileException(nodes[i], "No class can be defined");
+			} else if (i < nodes.length - 1) {
+				// only the effects are needed
+				JSCode code = analyze(nodes[i], scope);
+				if (code instanceof JSBlock)
+					stat.add(((JSBlock) code).effects());
+				else if (!(code instanceof JSExpr)
+						|| !JSBlock.pure((JSExpr) code))
+					stat.add(code);
 			} else {
 				stat.add(analyze(nodes[i], scope));
 			}
+			if (JSBlock.throwing(stat.last()))
+				break; // the rest is never run
+		}
+		// unused bindings of pure values are dropped
+		if (seq.seqKind != Seq.EVAL && JSScope.CHECK_SCOPE) {
+			for (int i = 0; i < pureBinds.size(); i += 2) {
+				JSScope bound = (JSScope) pureBinds.get(i);
+				if (bound.refs != 0)
+					continue;
+				if (scripts == null) {
+					StringBuilder sb = new StringBuilder();
+					scripts(seq, sb);
+					scripts = sb.toString();
+				}
+				if (scripts.indexOf(bound.jsName) >= 0
+						|| scripts.indexOf(bound.yName) >= 0)
+					continue;
+				JSCode decl = (JSCode) pureBinds.get(i + 1);
+				stat.stats.remove(decl);
+				JSExpr value = JSBlock.boundValue(decl);
+				if (value instanceof JSFun) {
+					bound.findFnScope().closures.remove(value);
+					if (((JSFun) value).hoisted != null)
+						lifted.unbind(((JSFun) value).hoisted);
+				}
+			}
 		}
 		return new ScopedCode(scope,stat);
 	}
 
-	JSExpr lambda(XNode lambda, JSScope scope, boolean bindToVar) {
+	JSFun lambda(XNode lambda, JSScope scope, boolean bindToVar) {
+		return lambda(lambda, scope, bindToVar, null, null);
+	}
+
+	/**
+	 * selfName is the binding of an unnamed lambda, so that it can still
+	 * be tail call optimized. When fnNames is given the function shares
+	 * its js names with other functions, which get merged with it into
+	 * one loop by tailCallGroups (which also does the self tail calls).
+	 */
+	JSFun lambda(XNode lambda, JSScope scope, boolean bindToVar,
+			JSSym selfName, Set<String> fnNames) {
 		if (lambda.kind != "lambda")
 			throw new CompileException(lambda, "Must be a function");
 
 		//parent lambda scope
-		final JSScope pfnScope = scope.findFnScope();
-		scope = scope.fnScope();
+		scope = fnNames == null ? scope.fnScope() : scope.fnScope(fnNames);
 		final JSScope fnScope = scope; //here we have our free vars
 
 		// add deconstruction of struct-arg in here
@@ -672,6 +1450,7 @@ final public class JSAnalyzer extends YetiType {
 		JSFun lastFun = null;
 		JSFun firstFun = null;
 		JSFun tcoFun = null;
+		JSSym tcoName = null;
 		while (true) {
 			body = new JSBlock(lambda);
 			
@@ -708,13 +1487,15 @@ final public class JSAnalyzer extends YetiType {
 			JSFun cur = new JSFun(name, argName, body, lambda);
 			if (firstFun == null) {
 				firstFun = cur;
-				tcoFun = name == null ? null : firstFun;
+				tcoName = name == null ? selfName : name;
+				tcoFun = tcoName == null ? null : firstFun;
 			} else {
 				lastFun.body.add(cur);
 				lastFun.close();// close the body
 			}
 			if (name != null) {
 				tcoFun = cur;
+				tcoName = name;
 				argNames.clear();
 			}
 			argNames.add(argName);
@@ -729,52 +1510,224 @@ final public class JSAnalyzer extends YetiType {
 				}
 				lastFun.body.addFlat(varBody); // the destructured args
 				lastFun.body.addFlat(analyze(bodyNode, scope)); // the meat
-				JSSym[] args = (JSSym[]) argNames.toArray(new JSSym[argNames
-						.size()]);
-				// Is a tail call
-				if (!bindToVar
-						&& tcoFun != null
-						&& JSFun.isBodyTCO(tcoFun.name.sym, args, lastFun.body,
-								true, null)) {
-					fnScope.tcoArgs = argNames; //mark our scope as TCO
-					JSSym tv = new JSSym();
-					JSBlock nBody = new JSBlock(lambda);
-					nBody.bind(tv, JSCode.UNDEF, lambda);
-					// transform it
-					JSFun.isBodyTCO(tcoFun.name.sym, args, lastFun.body, false, tv);
-					JSWhile wl = new JSWhile(JSCode.TRUE, lastFun.body.copy(),
-							lambda);
-					nBody.add(wl);
-					nBody.add(tv);
-					lastFun.body.stats.clear();
-					lastFun.body.stats.addAll(nBody.stats);
+
+				if (!bindToVar && tcoFun != null) {
+					firstFun.tcoName = tcoName;
+					firstFun.tcoArgs = (JSSym[]) argNames
+							.toArray(new JSSym[argNames.size()]);
+					firstFun.tcoOuter = tcoFun == firstFun;
+				}
+				firstFun.scope = fnScope;
+				firstFun.tcoBody = lastFun;
+				fnScope.parent.findFnScope().closures.add(firstFun);
+				if (fnNames == null) {
+					selfTailCall(firstFun);
+					lift(firstFun);
 				}
-				lastFun.close();// close it
-				
-				final String pName = name == null? "" :name.sym;
-				firstFun.capture = new Callable<Set<JSSym>>() {
-					@Override
-					public Set<JSSym> call() throws Exception {
-						if(pfnScope.tcoArgs != null){
-							Set<JSSym> ret = new HashSet<JSSym>();
-							
-							for(String yn:fnScope.freeVars) {
-								JSSym s = fnScope.ref(yn, null);
-								if(pfnScope.tcoArgs.contains(s))
-									ret.add(s);
-							}
-							return ret;
-						}else{
-							return Collections.emptySet();
-						}
-					}
-				};
 				return firstFun;
 			}
 			// go on
 		}
 	}
 
+	/**
+	 * Turns the self tail calls of fun into a loop and closes it.
+	 */
+	private static void selfTailCall(JSFun fun) {
+		JSBlock body = fun.tcoBody.body;
+		Map<JSScope, JSFun.TailTarget> self;
+		JSFun.TailTarget target = null;
+		if (fun.tcoName != null
+				&& JSFun.tailCalls(self = Collections.singletonMap(
+						fun.tcoName.binding, target = new JSFun.TailTarget(
+								fun.tcoArgs, 0)),
+						null, body, true, null, null)) {
+			JSBlock nBody = new JSBlock(body.node);
+			// transform it
+			JSFun.tailCalls(self, null, body, false, null, null);
+			loopClosures(fun, target, nBody);
+			nBody.add(new JSWhile(JSCode.TRUE, body.copy(), body.node));
+			body.stats.clear();
+			body.stats.addAll(nBody.stats);
+		}
+		fun.tcoBody.close();
+	}
+
+	/**
+	 * The body of fun has become a loop, where target got the arguments
+	 * assigned by the tail calls. Closures created in the loop capture
+	 * the values of the variables changing in it; the ones not using any
+	 * of them are created once before the loop (in pre). A var is not
+	 * copied, as the closure may assign it: it is kept in a new array
+	 * in each iteration, which the closure captures (a var named by
+	 * some script stays a plain variable).
+	 */
+	private static void loopClosures(JSFun fun, JSFun.TailTarget target,
+			JSBlock pre) {
+		JSScope loop = fun.scope;
+		loop.loopInvariant = new HashSet<String>();
+		loop.loopInvariant.add(fun.tcoName.sym);
+		for (int i = 0; i < target.args.length; ++i)
+			if (!target.assigned.contains(target.args[i]))
+				loop.loopInvariant.add(target.args[i].sym);
+		for (JSFun c : loop.closures) {
+			if (c.hoisted != null)
+				continue;
+			Set<JSSym> capture = new LinkedHashSet<JSSym>();
+			boolean variant = false;
+			for (String yn : c.scope.freeVars) {
+				JSScope par = c.scope.loopVariant(yn, loop);
+				if (par == null)
+					continue;
+				variant = true;
+				if (!par.mutable) {
+					capture.add(c.scope.ref(yn, c.node));
+				} else if (!par.scripted) {
+					par.cell = true;
+					capture.add(new JSSym(par.jsName, c.node));
+				}
+			}
+			if (variant) {
+				if (!capture.isEmpty())
+					c.capture = capture;
+			} else {
+				c.hoisted = new JSSym();
+				pre.bind(c.hoisted, c.declaration(), c.node);
+			}
+		}
+	}
+
+	/**
+	 * Struct functions calling each other in tail position (odd/even) are
+	 * merged into one loop, which selects the function to run with
+	 * a variable. The functions themselves only enter that loop. funs and
+	 * refs are the functions and their struct bindings, decls gets
+	 * the loops. Anything not merged gets its self tail calls optimized.
+	 */
+	private void tailCallGroups(List<JSFun> funs, List<JSSym> refs,
+			Set<String> fnNames, JSBlock decls, Node where) {
+		int n = funs.size();
+		Map<JSScope, JSFun.TailTarget> targets =
+				new HashMap<JSScope, JSFun.TailTarget>();
+		for (int i = 0; i < n; ++i) {
+			JSFun f = funs.get(i);
+			if (f.tcoName != null && f.tcoOuter) {
+				JSFun.TailTarget t = new JSFun.TailTarget(f.tcoArgs, i);
+				targets.put(refs.get(i).binding, t);
+				targets.put(f.tcoName.binding, t);
+			}
+		}
+
+		// who calls whom in tail position, transitively
+		boolean[][] calls = new boolean[n][n];
+		for (int i = 0; i < n; ++i) {
+			JSFun f = funs.get(i);
+			if (!targets.containsKey(refs.get(i).binding))
+				continue;
+			Set<JSFun.TailTarget> found = new HashSet<JSFun.TailTarget>();
+			JSFun.tailCalls(targets, null, f.tcoBody.body, true, null, found);
+			for (JSFun.TailTarget t : found)
+				calls[i][t.index] = true;
+		}
+		for (int k = 0; k < n; ++k)
+			for (int i = 0; i < n; ++i)
+				for (int j = 0; j < n; ++j)
+					calls[i][j] |= calls[i][k] && calls[k][j];
+
+		boolean[] done = new boolean[n];
+		for (int i = 0; i < n; ++i) {
+			if (done[i])
+				continue;
+			List<JSFun> group = new ArrayList<JSFun>();
+			List<JSSym> groupRefs = new ArrayList<JSSym>();
+			for (int j = i; j < n; ++j)
+				if (i == j || calls[i][j] && calls[j][i]) {
+					group.add(funs.get(j));
+					groupRefs.add(refs.get(j));
+				}
+			if (group.size() > 1
+					&& mergeTailCalls(group, groupRefs, fnNames, decls, where)) {
+				for (int j = i; j < n; ++j)
+					done[j] |= i == j || calls[i][j] && calls[j][i];
+			} else {
+				selfTailCall(funs.get(i));
+				lift(funs.get(i));
+				done[i] = true;
+			}
+		}
+	}
+
+	private boolean mergeTailCalls(List<JSFun> group, List<JSSym> refs,
+			Set<String> fnNames, JSBlock decls, Node where) {
+		// the bodies end up in one js function, so none of their
+		// names may hide a variable used by another one
+		Set<String> declared = new HashSet<String>(fnNames);
+		for (int i = 0; i < group.size(); ++i) {
+			JSFun f = group.get(i);
+			if (f.tcoName.sym == refs.get(i).sym)
+				declared.remove(f.tcoName.sym);
+		}
+		for (int i = 0; i < group.size(); ++i) {
+			JSFun f = group.get(i);
+			if (declared.contains(refs.get(i).sym))
+				return false;
+			for (String yn : f.scope.freeVars)
+				if (declared.contains(f.scope.ref(yn, where).sym))
+					return false;
+		}
+
+		JSSym loop = new JSSym();
+		JSSym which = new JSSym();
+		List<JSSym> params = new ArrayList<JSSym>();
+		params.add(which);
+		Map<JSScope, JSFun.TailTarget> targets =
+				new HashMap<JSScope, JSFun.TailTarget>();
+		JSBlock loopBody = new JSBlock(where);
+		for (int i = 0; i < group.size(); ++i) {
+			JSFun f = group.get(i);
+			JSFun.TailTarget t = new JSFun.TailTarget(f.tcoArgs, i);
+			targets.put(refs.get(i).binding, t);
+			targets.put(f.tcoName.binding, t);
+			if (f.tcoName.sym != refs.get(i).sym) // self references
+				loopBody.bind(f.tcoName, refs.get(i), where);
+		}
+
+		JSIfBuilder select = new JSIfBuilder(where);
+		for (int i = 0; i < group.size(); ++i) {
+			JSFun f = group.get(i);
+			JSBlock body = f.tcoBody.body;
+			JSFun.tailCalls(targets, which, body, false, null, null);
+			select.add(new JSBinOp("===", which,
+					new JSLitExpr(Integer.toString(i), where), where),
+					body.copy());
+
+			// the function only enters the loop
+			List<JSExpr> args = new ArrayList<JSExpr>();
+			args.add(new JSLitExpr(Integer.toString(i), where));
+			for (int j = 0; j < f.tcoArgs.length; ++j) {
+				if (f.tcoArgs[j] == JSCode.NO_ARG)
+					continue;
+				while (args.size() < params.size())
+					args.add(JSCode.UNDEF);
+				params.add(f.tcoArgs[j]);
+				args.add(f.tcoArgs[j]);
+			}
+			body.stats.clear();
+			body.add(new JSObjApply(loop,
+					(JSExpr[]) args.toArray(new JSExpr[args.size()]), where));
+			f.tcoBody.close();
+		}
+		for (int i = 0; i < group.size(); ++i)
+			loopClosures(group.get(i), targets.get(refs.get(i).binding),
+					loopBody);
+
+		loopBody.add(new JSWhile(JSCode.TRUE, select.stat(), where));
+		decls.bind(loop, new JSFun(null,
+				(JSSym[]) params.toArray(new JSSym[params.size()]),
+				loopBody, where), where);
+		return true;
+	}
+
 	Bind getField(Node node) {
 		if (!(node instanceof Bind))
 			throw new CompileException(node,
@@ -817,9 +1770,16 @@ final public class JSAnalyzer extends YetiType {
 		}
 		
 		//create the object literal for all the fields
+		//function fields get a placeholder, so that assigning them later
+		//does not change the shape of the object
+		Set<String> names = new HashSet<String>(fields.keySet());
+		for(Bind fun: funs.keySet())
+			names.add(fun.name);
 		JSObjLiteral objLit = new JSObjLiteral(st);
-		for(Map.Entry<String, Node> e: fields.entrySet()){
-			objLit.add(e.getKey(), analyze(e.getValue(),scope).toExpr());
+		for(String name: JSObjLiteral.fieldOrder(names)){
+			Node value = fields.get(name);
+			objLit.add(name, value == null ? JSCode.UNDEF
+					: analyze(value,scope).toExpr());
 		}
 		if(funs.isEmpty())
 			return new ScopedCode(scope,objLit);
@@ -840,27 +1800,36 @@ final public class JSAnalyzer extends YetiType {
 		}
 		
 		//all the functions as vars and evaluated in full struct scope
+		int loops = block.stats.size();
+		Set<String> fnNames = new HashSet<String>();
+		List<JSFun> funCodes = new ArrayList<JSFun>();
+		List<JSSym> funRefs = new ArrayList<JSSym>();
 		for(Map.Entry<Bind, XNode> e: funs.entrySet()){
 			Node nd = e.getKey();
 			String name = e.getKey().name;
 			JSSym ref = scope.ref(name,e.getValue());
-			block.bind(scope.ref(name, e.getValue()), 
-					lambda(e.getValue(), scope, e.getKey().var).toExpr(), 
-					e.getValue());
+			JSFun fun = lambda(e.getValue(), scope, e.getKey().var,
+					ref, fnNames);
+			funCodes.add(fun);
+			funRefs.add(ref);
+			block.bind(scope.ref(name, e.getValue()), fun, e.getValue());
 			block.add(new JSAssign(
 					new JSFieldRef(tv,name,nd), 
 					ref, 
 					nd));
 		}
+		JSBlock decls = new JSBlock(st);
+		tailCallGroups(funCodes, funRefs, fnNames, decls, st);
+		block.stats.addAll(loops, decls.stats);
 		block.add(tv);
 		return new ScopedCode(scope,block);
 	}
 
 	JSExpr list(Node list, Node[] items, JSScope scope) {
 		if (items == null)
-			return new JSMap(list);
+			return new JSMap(list, esMaps);
 
-		JSMap map = new JSMap(list);
+		JSMap map = new JSMap(list, esMaps);
 		JSList ls = new JSList(list);
 
 		YType kind = null;
@@ -918,14 +1887,42 @@ final public class JSAnalyzer extends YetiType {
 		// dirty hack for preloading just in root contxt
 		JSScope scope = JSScope.ROOT;
 		if("std".equals(className)){
+			// a copy of the ROOT names, ROOT is shared by all compiles
+			// in the JVM
+			scope = scope.fnScope(
+					new HashSet<String>(scope.findFnScope().fnScope));
+			anal.moduleScope = scope.findFnScope();
 			JSBlock ret = new JSBlock(n);
-			ret.addFlat(anal.analyze(n, scope));
+			JSCode code = anal.analyze(n, scope);
+			ret.addFlat(anal.moduleDecls());
+			ret.addFlat(code);
+			for (Map.Entry<String, JSFun> e : anal.moduleFuns.entrySet()) {
+				JSInline inline = JSInline.of(e.getValue());
+				if (inline != null)
+					ctx.jsInline.put(e.getKey(), inline);
+			}
 			return ret;
 		}
+		initRootScope(ctx, preload, n);
+
+		scope = ctx.rootJSScope;
+		anal.moduleScope = scope.findFnScope();
+		JSBlock ret = new JSBlock(n);
+
+		JSCode code = anal.analyze(n, scope);
+		ret.addFlat(anal.moduleDecls());
+		ret.addFlat(code);
+		return ret;
+	}
+
+	// binds the preloaded modules for the first module of the compile,
+	// also when the module itself comes from the module cache
+	static void initRootScope(Compiler ctx, String[] preload, Node n) {
 		if (ctx.rootJSScope == null) {
+			JSAnalyzer anal = new JSAnalyzer(ctx);
 			//compiling std first, because YetiAnalyzer loads it through
 			//preloads
-			ctx.rootJSScope = scope.fnScope();
+			ctx.rootJSScope = JSScope.ROOT.fnScope();
 			for (int i = 0; i < preload.length; i++) {
 				String mn = preload[i];
 				ModuleType t = ctx.getType(n, mn);
@@ -934,11 +1931,5 @@ final public class JSAnalyzer extends YetiType {
 				ctx.mainJS.add(sc.code);
 			}
 		}
-
-		scope = ctx.rootJSScope;
-		JSBlock ret = new JSBlock(n);
-
-		ret.addFlat(anal.analyze(n, scope));
-		return ret;
 	}
 }
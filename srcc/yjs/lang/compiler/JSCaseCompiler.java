@@ -32,7 +32,6 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
-import yeti.lang.Core;
 import yjs.lang.compiler.JSAnalyzer.JSScope;
 
 final class JSCaseCompiler extends YetiType 
@@ -42,6 +41,8 @@ final class JSCaseCompiler extends YetiType
 	final JSAnalyzer anal;
 	JSAnalyzer.JSScope scope;
 	final Set<String> definedVars ;
+	// scripts of the bodies, pattern variables named there keep their names
+	final String scripts;
 	
 	int prec;
 	JSCode body;
@@ -49,22 +50,28 @@ final class JSCaseCompiler extends YetiType
 	
 	JSCaseCompiler(JSAnalyzer anal, JSScope scope, 
 			JSBlock global, 
-			Set<String> definedVars) {
+			Set<String> definedVars, String scripts) {
 		this.global = global;
 		this.anal = anal;
 		this.scope = scope;
 		this.definedVars = definedVars;
+		this.scripts = scripts;
 	}
 
+	// the variables are set by the pattern before the body uses them
 	private JSSym addVar(String name, Node n) {
-		JSSym var;
-		if (name == null)
-			return new JSSym();
-		else{
+		if (name == null) {
+			JSSym tv = new JSSym();
+			tv.assigned = true;
+			global.bind(tv, JSCode.UNDEF, n);
+			return tv;
+		} else{
 			if(definedVars.contains(name)) 
 				return scope.ref(name, n);
 			definedVars.add(name);
 			scope = scope.bind(name);
+			scope.slot = scripts.indexOf(name) < 0
+					&& scripts.indexOf(scope.jsName) < 0;
 			JSSym sy = scope.decl(n);
 			global.bind(sy, JSCode.UNDEF, n);
 			return sy;
@@ -102,14 +109,22 @@ final class JSCaseCompiler extends YetiType
 		if (node.kind == "list") {
 			Node[] list = ((XNode) node).expr;
 			final JSExpr[] items = new JSExpr[list.length];
+			// a lazy list is matched as array of its first elements (one
+			// more than the pattern has, to see that it is not longer)
+			final JSSym arr = items.length == 0 ? null : addVar(null, node);
+			final JSExpr elems = arr == null ? val : arr;
 
 			for (int i = 0; i < items.length; i++) {
-				items[i] = toPattern(list[i], new JSArrRef(val, i, list[i]));
+				items[i] = toPattern(list[i], new JSArrRef(elems, i, list[i]));
 			}
 
 			JSExpr ret = new JSExpr(node) {
 				void code(CodeBuilder bd) {
-					bd.add("(").add(val).add(".length === ")
+					bd.add("(");
+					if (arr != null)
+						bd.add(arr).add(" = _array(").add(val).add(", ")
+								.add("" + (items.length + 1)).add("), ");
+					bd.add(elems).add(".length === ")
 							.add("" + items.length).add(" && (")
 							.addAll(items, ") && (").add("))");
 				};
@@ -131,14 +146,9 @@ final class JSCaseCompiler extends YetiType
 
 				JSExpr expr = JSBinOp.create(
 						"and",
-						new JSBinOp("===", 
-								new JSLitExpr(Core.show(variant), pat.left),
-								new JSFieldRef(val, "tag", pat.left), node)
-								.toExpr(), valPat, node,scope).toExpr();
-				expr = JSBinOp.create(
-						"and",
-						new JSBinOp("instanceof", val, new JSLitExpr("_tag", node),
-								node), expr, node,scope).toExpr();
+						new JSBinOp("instanceof", val,
+								anal.tagClass(variant), node),
+						valPat, node,scope).toExpr();
 				if ("None".equals(variant)) {
 					expr = JSBinOp
 							.create("or",
@@ -172,7 +182,9 @@ final class JSCaseCompiler extends YetiType
 					};
 
 					void code(CodeBuilder bd) {
-						bd.add("(").add(val).add(".length > 0").add(" && ")
+						bd.add("(").add("(").add(val)
+								.add(" instanceof _Lazy || ").add(val)
+								.add(".length > 0)").add(" && ")
 								.add(le).add(" && ").add(re).add(")");
 					};
 				};
@@ -203,15 +215,24 @@ final class JSCaseCompiler extends YetiType
 		Node[] choices = ex.expr;
 		JSBlock global =new JSBlock("case", ex); 
 		Set<String> definedVars = new HashSet<String>();
+		StringBuilder sb = new StringBuilder();
+		JSAnalyzer.scripts(ex, sb);
+		String scripts = sb.toString();
 		
-		JSSym val = new JSSym();
-		global.bind(val, anal.analyze(choices[0], scope).toExpr(), null);
+		// a variable is matched directly, without copying it
+		JSExpr val = anal.analyze(choices[0], scope).toExpr();
+		if (!(val instanceof JSSym)) {
+			JSSym tv = new JSSym();
+			global.bind(tv, val, null);
+			val = tv;
+		}
 		JSIfBuilder jsif = new JSIfBuilder(ex);
 
 		JSCaseCompiler[] pats = new JSCaseCompiler[choices.length - 1];
 		for (int i = 1; i < choices.length; ++i) {
 			JSCaseCompiler cc = 
-					new JSCaseCompiler(anal, scope, global,definedVars);
+					new JSCaseCompiler(anal, scope, global, definedVars,
+							scripts);
 			pats[i - 1] = cc;
 			XNode choice = (XNode) choices[i];
 			cc.makePattern(choice.expr[0], val);
@@ -30,13 +30,15 @@ package yjs.lang.compiler;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import yjs.lang.compiler.JSAnalyzer.JSScope;
 
@@ -58,6 +60,201 @@ class CodeBuilder {
 
 	int ident = 0;
 
+	private Frame frame; // the function being written
+
+	/**
+	 * Names used by a function being written. The temporaries declared
+	 * in the function and used only there share their js names, when
+	 * their live ranges do not overlap. A range goes from the first to
+	 * the last use in the code, and over the whole loops it is live in.
+	 */
+	private static final class Frame {
+		final Frame outer;
+		final int start;
+		// uses of the temporaries, as name and position pairs
+		final List<Object> uses = new ArrayList<Object>();
+		// declared temporaries, true when each has a value before use
+		final Map<String, Boolean> declared = new HashMap<String, Boolean>();
+		// declarations without value, as name, start and end triples
+		final List<Object> undefs = new ArrayList<Object>();
+		final Set<String> names = new HashSet<String>(); // used in here
+		final Set<String> fixed = new HashSet<String>(); // keep the name
+		final List<int[]> loops = new ArrayList<int[]>(); // inner first
+
+		Frame(Frame outer, int start) {
+			this.outer = outer;
+			this.start = start;
+		}
+
+		void rename(StringBuilder bd) {
+			Map<String, int[]> ranges = new HashMap<String, int[]>();
+			for (int i = 0, u = 0; i < uses.size(); i += 2) {
+				String name = (String) uses.get(i);
+				int at = (Integer) uses.get(i + 1);
+				if (fixed.contains(name)
+						|| declared.get(name) != Boolean.TRUE)
+					continue;
+				// a var is hoisted, so a declaration without value (of a
+				// variable set before each use) doesn't start the range
+				while (u < undefs.size() && (Integer) undefs.get(u + 2) <= at)
+					u += 3;
+				if (u < undefs.size() && (Integer) undefs.get(u + 1) <= at)
+					continue;
+				int[] range = ranges.get(name);
+				if (range == null)
+					ranges.put(name, new int[] { at, at });
+				else
+					range[1] = at;
+			}
+			if (ranges.size() < 2)
+				return;
+			// a range crossing a loop boundary is live in the whole loop
+			for (int[] loop : loops)
+				for (int[] range : ranges.values())
+					if (range[0] < loop[1] && range[1] >= loop[0]
+							&& (range[0] < loop[0] || range[1] >= loop[1])) {
+						range[0] = Math.min(range[0], loop[0]);
+						range[1] = Math.max(range[1], loop[1]);
+					}
+			List<String> order = new ArrayList<String>(ranges.keySet());
+			final Map<String, int[]> r = ranges;
+			Collections.sort(order, new Comparator<String>() {
+				public int compare(String a, String b) {
+					return r.get(a)[0] - r.get(b)[0];
+				}
+			});
+			// linear scan, giving a name free again to the next range
+			Map<String, String> to = new HashMap<String, String>();
+			List<String> live = new ArrayList<String>();
+			List<String> free = new ArrayList<String>();
+			for (String name : order) {
+				int start = ranges.get(name)[0];
+				for (Iterator<String> i = live.iterator(); i.hasNext();) {
+					String l = i.next();
+					if (ranges.get(l)[1] < start) {
+						free.add(to.get(l));
+						i.remove();
+					}
+				}
+				to.put(name, free.isEmpty() ? name
+						: free.remove(free.size() - 1));
+				live.add(name);
+			}
+			// a renamed var without value is already declared by its slot
+			List<int[]> drop = new ArrayList<int[]>();
+			for (int i = 0; i < undefs.size(); i += 3) {
+				String slot = to.get(undefs.get(i));
+				if (slot != null && !slot.equals(undefs.get(i))) {
+					int from = (Integer) undefs.get(i + 1);
+					while (bd.charAt(from - 1) == ' ')
+						--from;
+					if (bd.charAt(from - 1) == '\n')
+						--from;
+					drop.add(new int[] { from, (Integer) undefs.get(i + 2) });
+				}
+			}
+			StringBuilder code = null;
+			int last = start, d = 0;
+			for (int i = 0; i < uses.size(); i += 2) {
+				String name = (String) uses.get(i);
+				String slot = to.get(name);
+				int at = (Integer) uses.get(i + 1);
+				for (; d < drop.size() && drop.get(d)[0] <= at; ++d) {
+					if (code == null)
+						code = new StringBuilder(bd.length() - start);
+					code.append(bd, last, drop.get(d)[0]);
+					last = drop.get(d)[1];
+				}
+				if (slot == null || slot.equals(name) || at < last)
+					continue;
+				if (code == null)
+					code = new StringBuilder(bd.length() - start);
+				code.append(bd, last, at).append(slot);
+				last = at + name.length();
+			}
+			if (code != null) {
+				code.append(bd, last, bd.length());
+				bd.setLength(start);
+				bd.append(code);
+			}
+		}
+	}
+
+	/**
+	 * Starts writing a function, whose temporaries may share names.
+	 */
+	CodeBuilder fun() {
+		frame = new Frame(frame, bd.length());
+		return this;
+	}
+
+	/**
+	 * Ends the function started last, renaming its temporaries.
+	 */
+	CodeBuilder endFun() {
+		Frame f = frame;
+		frame = f.outer;
+		if (frame != null) {
+			// names used in nested functions belong to the outer ones
+			frame.names.addAll(f.names);
+			frame.fixed.addAll(f.names);
+		}
+		f.rename(bd);
+		return this;
+	}
+
+	int mark() {
+		return bd.length();
+	}
+
+	/**
+	 * Marks the code written since start as a loop.
+	 */
+	void loop(int start) {
+		if (frame != null)
+			frame.loops.add(new int[] { start, bd.length() });
+	}
+
+	/**
+	 * Declares the variable (by var), set tells whether it has a value
+	 * there or is set before each use.
+	 */
+	void declare(JSSym sym, boolean set) {
+		if (frame != null) {
+			String name = sym.jsCode();
+			Boolean was = frame.declared.get(name);
+			set |= sym.assigned();
+			frame.declared.put(name, was == null ? set : was && set);
+		}
+	}
+
+	/**
+	 * Marks the code written since start as the declaration of the
+	 * variable without value, which can go when it is renamed.
+	 */
+	void undef(JSSym sym, int start) {
+		if (frame != null) {
+			frame.undefs.add(sym.jsCode());
+			frame.undefs.add(start);
+			frame.undefs.add(bd.length());
+		}
+	}
+
+	CodeBuilder sym(JSSym sym) {
+		String name = sym.jsCode();
+		if (frame != null) {
+			frame.names.add(name);
+			if (sym.temp()) {
+				frame.uses.add(name);
+				frame.uses.add(bd.length());
+			} else {
+				frame.fixed.add(name);
+			}
+		}
+		bd.append(name);
+		return this;
+	}
+
 	CodeBuilder ind(int dif) {
 		ident = Math.max(0, ident + dif);
 		return this;
@@ -266,8 +463,10 @@ class JSAssign extends JSExpr {
 	}
 
 	void code(CodeBuilder bd) {
-
-		bd.add(left).add(" = ").add(right);
+		if (left instanceof JSMapRef)
+			((JSMapRef) left).assign(bd, right);
+		else
+			bd.add(left).add(" = ").add(right);
 	}
 }
 
@@ -316,6 +515,8 @@ class JSBlock extends JSStat {
 
 	JSBlock add(JSCode code) {
 		JSBlock seq;
+		if (throwing(last()))
+			return this; // never run
 		if (code instanceof JSBlock && (seq = (JSBlock) code).kind != null) {
 			stats.addAll(seq.stats);
 		} else {
@@ -325,6 +526,8 @@ class JSBlock extends JSStat {
 	}
 
 	JSBlock addFlat(JSCode code) {
+		if (throwing(last()))
+			return this;
 		if (code instanceof JSBlock) {
 			this.stats.addAll(((JSBlock) code).stats);
 		} else {
@@ -339,9 +542,12 @@ class JSBlock extends JSStat {
 
 	JSBlock bind(JSExpr s, JSCode expr, Node nd) {
 		JSBlock ot = null;
+		if (throwing(last()))
+			return this;
 		if (expr instanceof JSBlock && (ot = (JSBlock) expr).kind != null) {
 			this.stats.addAll(ot.stats);
-			bindLast(s, true, nd);
+			if (!(s instanceof JSSym) || !resultTo((JSSym) s))
+				bindLast(s, true, nd);
 		} else {
 			add(new Bind(s, expr.toExpr(), nd));
 		}
@@ -350,7 +556,9 @@ class JSBlock extends JSStat {
 
 	void bindLast(JSExpr s, boolean var, Node nd) {
 		JSCode l = last();
-		if (l instanceof JSExpr) {
+		if (throwing(l)) {
+			return; // gives no value
+		} else if (l instanceof JSExpr) {
 			if (var)
 				l = new Bind(s, (JSExpr) l, nd);
 			else
@@ -365,6 +573,127 @@ class JSBlock extends JSStat {
 		}
 	}
 
+	/**
+	 * Drops what only gives the value, for blocks run as statements: a
+	 * pure last expression and the result variable of a last if.
+	 */
+	JSBlock effects() {
+		JSCode l = last();
+		if (l instanceof JSExpr && pure((JSExpr) l)) {
+			stats.remove(stats.size() - 1);
+			l = last();
+		}
+		if (l instanceof JSIfBuilder.IfStat
+				&& !((JSIfBuilder.IfStat) l).bound) {
+			JSIfBuilder.IfStat ifStat = (JSIfBuilder.IfStat) l;
+			ifStat.bound = true;
+			unbind(ifStat.getBuilder().var);
+			List clauses = ifStat.getBuilder().clauses;
+			Iterator it = clauses.iterator();
+			while (it.hasNext())
+				((JSIfBuilder.Clause) it.next()).body.effects();
+			// empty last branches are not needed
+			for (int i = clauses.size(); --i > 0;) {
+				JSIfBuilder.Clause cl = (JSIfBuilder.Clause) clauses.get(i);
+				if (!cl.body.stats.isEmpty()
+						|| cl.cond != null && !pure(cl.cond))
+					break;
+				clauses.remove(i);
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Lets an if ending the block assign its branch values directly to
+	 * var, instead of copying them from its own result variable.
+	 */
+	private boolean resultTo(JSSym var) {
+		int n = stats.size();
+		JSIfBuilder.IfStat ifStat;
+		if (n < 3 || !(stats.get(n - 2) instanceof JSIfBuilder.IfStat)
+				|| (ifStat = (JSIfBuilder.IfStat) stats.get(n - 2)).bound
+				|| ifStat.getBuilder().var != stats.get(n - 1))
+			return false;
+		JSIfBuilder builder = ifStat.getBuilder();
+		for (int i = n - 3; i >= 0; --i) {
+			if (stats.get(i) instanceof Bind
+					&& ((Bind) stats.get(i)).var == builder.var) {
+				stats.set(i, new Bind(var, JSCode.UNDEF, node));
+				stats.remove(n - 1);
+				builder.var = var;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Removes the declaration of var.
+	 */
+	void unbind(JSExpr var) {
+		for (int i = stats.size(); --i >= 0;)
+			if (stats.get(i) instanceof Bind && ((Bind) stats.get(i)).var == var) {
+				stats.remove(i);
+				return;
+			}
+	}
+
+	/**
+	 * The value of a declaration made by bind.
+	 */
+	static JSExpr boundValue(JSCode decl) {
+		return decl instanceof Bind ? ((Bind) decl).expr : null;
+	}
+
+	/**
+	 * Whether evaluating expr has no effects (besides allocating).
+	 */
+	static boolean pure(JSExpr expr) {
+		if (expr instanceof JSGroup)
+			return pure(((JSGroup) expr).expr);
+		if (expr instanceof JSSym || expr instanceof JSFun)
+			return true;
+		if (expr instanceof JSLitExpr)
+			return expr != JSCode.CONTINUE && expr != JSCode.BREAK;
+		if (expr instanceof JSBinOp) {
+			JSBinOp op = (JSBinOp) expr;
+			return op.op != "instanceof"
+					&& (op.left == null || pure(op.left)) && pure(op.right);
+		}
+		if (expr instanceof JSObjLiteral) {
+			Iterator it = ((JSObjLiteral) expr).fieldValues.iterator();
+			while (it.hasNext())
+				if (!pure(((JSObjLiteral.JSFieldValue) it.next()).value))
+					return false;
+			return true;
+		}
+		if (expr instanceof JSList) {
+			Iterator it = ((JSList) expr).exprsList.iterator();
+			while (it.hasNext()) {
+				Object part = it.next();
+				if (!(part instanceof List))
+					return false;
+				for (Object e : (List) part)
+					if (!pure((JSExpr) e))
+						return false;
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Whether code is a throw, so nothing after it is run.
+	 */
+	static boolean throwing(JSCode code) {
+		JSExpr apl;
+		return code instanceof JSExprStat
+				&& (apl = ((JSExprStat) code).expr) instanceof JSApply
+				&& ((JSApply) apl).fun instanceof JSSym
+				&& "throw".equals(((JSSym) ((JSApply) apl).fun).sym);
+	}
+
 	private static final class Bind extends JSStat {
 		final JSExpr var;
 		final JSExpr expr;
@@ -382,9 +711,22 @@ class JSBlock extends JSStat {
 		}
 
 		void code(CodeBuilder bd) {
-			if(expr == JSCode.UNDEF)
+			JSScope bound = var instanceof JSSym ? ((JSSym) var).binding
+					: null;
+			if (var instanceof JSSym)
+				bd.declare((JSSym) var, expr != JSCode.UNDEF);
+			if (bound != null && bound.cell) {
+				// the var of a loop iteration shared with its closures
+				bd.add("var ").sym((JSSym) var).add(" = [");
+				if (expr != JSCode.UNDEF)
+					bd.add(expr);
+				bd.add("]").se();
+			} else if(expr == JSCode.UNDEF) {
+				int start = bd.mark();
 				bd.add("var ").add(var).se();
-			else
+				if (var instanceof JSSym)
+					bd.undef((JSSym) var, start);
+			} else
 				bd.add("var ").add(var).add(" = ").add(expr).se();
 		}
 	}
@@ -459,17 +801,45 @@ final class JSList extends JSExpr {
 }
 
 final class JSMapRef extends JSExpr {
+	// how the key is looked up: as object property, in an ES Map,
+	// or by the std helpers when the map kind is not known statically
+	static final int OBJ = 0;
+	static final int ES_MAP = 1;
+	static final int ANY = 2;
+
 	final JSExpr map;
 	final JSExpr key;
+	final int access;
 
 	public JSMapRef(JSExpr map, JSExpr key) {
+		this(map, key, OBJ);
+	}
+
+	public JSMapRef(JSExpr map, JSExpr key, int access) {
 		super(map.node);
 		this.map = map;
 		this.key = key;
+		this.access = access;
 	}
 
 	void code(CodeBuilder bd) {
-		bd.add(group(map, this)).add("[").add(key).add("]");
+		if (access == ES_MAP)
+			bd.add(group(map, this)).add(".get(").add(key).add(")");
+		else if (access == ANY)
+			bd.add("_hget(").add(map).add(",").add(key).add(")");
+		else
+			bd.add(group(map, this)).add("[").add(key).add("]");
+	}
+
+	void assign(CodeBuilder bd, JSExpr value) {
+		if (access == ES_MAP)
+			bd.add(group(map, this)).add(".set(").add(key).add(",")
+					.add(value).add(")");
+		else if (access == ANY)
+			bd.add("_hset(").add(map).add(",").add(key).add(",").add(value)
+					.add(")");
+		else
+			bd.add(this).add(" = ").add(value);
 	}
 
 	int precedence() {
@@ -481,6 +851,8 @@ final class JSMapRef extends JSExpr {
 final class JSMap extends JSExpr {
 	final JSSym tempVar = new JSSym();
 	final JSBlock seq = new JSBlock("jsmap", null);
+	// an ES Map instead of a plain object
+	final boolean esMap;
 
 	class Entry extends JSStat {
 		final JSExpr key;
@@ -497,8 +869,9 @@ final class JSMap extends JSExpr {
 		};
 	}
 
-	public JSMap(Node node) {
+	public JSMap(Node node, boolean esMap) {
 		super(node);
+		this.esMap = esMap;
 		seq.bind(tempVar, new JSLitExpr("{}", node), null);
 	}
 
@@ -507,7 +880,14 @@ final class JSMap extends JSExpr {
 	}
 
 	void code(CodeBuilder bd) {
-		if (seq.stats.size() == 1)
+		if (esMap) {
+			// Map#set returns the map, so the entries are just chained
+			bd.add("new Map()");
+			for (int i = 1; i < seq.stats.size(); ++i) {
+				Entry e = (Entry) seq.stats.get(i);
+				bd.add(".set(").add(e.key).add(",").add(e.value).add(")");
+			}
+		} else if (seq.stats.size() == 1)
 			bd.add(JSCode.EMPTY_MAP);
 		else {
 			JSBlock seq = this.seq.copy();
@@ -517,7 +897,7 @@ final class JSMap extends JSExpr {
 	}
 
 	int precedence() {
-		return PREC_GROUP;
+		return esMap ? PREC_APPLY : PREC_GROUP;
 	}
 }
 
@@ -569,17 +949,38 @@ final class JSSym extends JSExpr {
 	private static long counter = 0;
 	final String sym;
 	private final String code;
+	private final boolean temp; // generated name
+	boolean int32 = false; // the number is a 32 bit integer
+	boolean assigned = false; // temporary set before each use
+	JSScope binding; // the scope binding the referenced name
 
 	JSSym() {
 		super(null);
 		this.sym = "_$v" + counter++;
 		this.code = sym;
+		this.temp = true;
 	}
 
 	JSSym(String sym, Node node) {
 		super(node);
 		this.sym = sym;
 		this.code = mangle(sym);
+		this.temp = false;
+	}
+
+	/**
+	 * Whether the name may be shared with other temporaries of the
+	 * function (see CodeBuilder): a generated one, or a pattern variable.
+	 */
+	boolean temp() {
+		return temp || binding != null && binding.slot;
+	}
+
+	/**
+	 * Whether the variable is set before each use.
+	 */
+	boolean assigned() {
+		return assigned || binding != null && binding.slot;
 	}
 
 	public int hashCode() {
@@ -597,10 +998,16 @@ final class JSSym extends JSExpr {
 	public String toString() {
 		return "("+this.sym+"/"+this.code+")";
 	}
+
+	String jsCode() {
+		return code;
+	}
 	
 
 	void code(CodeBuilder bd) {
-		bd.add(code);
+		bd.sym(this);
+		if (binding != null && binding.cell)
+			bd.add("[0]");
 	}
 
 	int precedence() {
@@ -626,8 +1033,8 @@ class JSExprStat extends JSStat {
 }
 
 class SimpleJSExpr extends JSExpr {
-	private final String kind;
-	private final String code;
+	final String kind;
+	final String code;
 	private final int precedence;
 
 	SimpleJSExpr(String kind, String code, int precedence, Node node) {
@@ -648,13 +1055,68 @@ class SimpleJSExpr extends JSExpr {
 }
 
 class JSLitExpr extends JSExpr {
-	private final String code;
+	private static final Pattern DECIMAL = Pattern
+			.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][-+]?[0-9]+)?");
+	private static final Pattern INTEGER = Pattern
+			.compile("-?(0|[1-9][0-9]{0,14})");
+
+	final String code;
 
 	public JSLitExpr(String code, Node node) {
 		super(node);
 		this.code = code;
 	}
 
+	/**
+	 * The literal for the number, unless js would write it differently
+	 * (NaN, infinite or negative zero).
+	 */
+	static JSLitExpr number(double v, Node node) {
+		if (Double.isNaN(v) || Double.isInfinite(v)
+				|| v == 0 && 1 / v < 0)
+			return null;
+		if (v == Math.rint(v) && Math.abs(v) < 1e15)
+			return new JSLitExpr(Long.toString((long) v), node);
+		return new JSLitExpr(Double.toString(v), node);
+	}
+
+	/**
+	 * The value of a decimal number literal, or null.
+	 */
+	Double number() {
+		return DECIMAL.matcher(code).matches() ? Double.valueOf(code) : null;
+	}
+
+	boolean string() {
+		return code.length() > 1 && code.charAt(0) == '"';
+	}
+
+	Boolean bool() {
+		return "true".equals(code) ? Boolean.TRUE
+				: "false".equals(code) ? Boolean.FALSE : null;
+	}
+
+	/**
+	 * Whether this is a small number, string or boolean constant, which
+	 * may be copied to its uses.
+	 */
+	boolean constant() {
+		return bool() != null || number() != null && code.length() <= 24
+				|| string() && code.length() <= 34;
+	}
+
+	/**
+	 * This as string literal, if it is a string or has the same string
+	 * form in js and yeti.
+	 */
+	JSLitExpr asString() {
+		if (string())
+			return this;
+		if (INTEGER.matcher(code).matches() || bool() != null)
+			return new JSLitExpr('"' + code + '"', node);
+		return null;
+	}
+
 	void code(CodeBuilder bd) {
 		bd.add(code);
 	}
@@ -681,7 +1143,9 @@ class JSWhile extends JSStat {
 	}
 
 	void code(CodeBuilder bd) {
+		int start = bd.mark();
 		bd.add("while(").add(cond).add(")").add(body);
+		bd.loop(start);
 	}
 }
 
@@ -693,14 +1157,50 @@ class JSConcatStr extends JSExpr {
 	}
 
 	void add(JSExpr expr) {
-		exprs.add(expr);
+		if (expr instanceof JSConcatStr) {
+			Iterator it = ((JSConcatStr) expr).exprs.iterator();
+			while (it.hasNext())
+				add((JSExpr) it.next());
+			return;
+		}
+		// adjacent literals are joined already here
+		JSLitExpr lit = expr instanceof JSLitExpr ? ((JSLitExpr) expr)
+				.asString() : null;
+		int last = exprs.size() - 1;
+		if (lit != null && last >= 0 && exprs.get(last) instanceof JSLitExpr
+				&& ((JSLitExpr) exprs.get(last)).string()) {
+			String prev = ((JSLitExpr) exprs.get(last)).code;
+			exprs.set(last, new JSLitExpr(prev.substring(0, prev.length() - 1)
+					+ lit.code.substring(1), node));
+		} else {
+			exprs.add(lit != null ? lit : expr);
+		}
+	}
+
+	/**
+	 * The string literal, if all parts were literals.
+	 */
+	JSExpr folded() {
+		if (exprs.size() == 1 && exprs.get(0) instanceof JSLitExpr)
+			return new JSLitExpr(((JSLitExpr) exprs.get(0)).code, node);
+		return exprs.isEmpty() ? new JSLitExpr("\"\"", node) : this;
 	}
 
 	void code(CodeBuilder bd) {
-		bd.add("\"\"");
+		// a leading string makes the + a string concatenation
+		JSExpr first = exprs.isEmpty() ? null : (JSExpr) exprs.get(0);
+		boolean str = first instanceof JSLitExpr
+				&& ((JSLitExpr) first).string()
+				|| first != null && first.getType() == YetiType.STR_TYPE
+				&& exprs.size() > 1;
+		if (!str)
+			bd.add("\"\"");
 		Iterator it = exprs.iterator();
-		while (it.hasNext()) {
-			bd.add(" + ").add(new JSGroup((JSExpr) it.next()));
+		for (boolean sep = !str; it.hasNext(); sep = true) {
+			JSExpr e = (JSExpr) it.next();
+			if (sep)
+				bd.add(" + ");
+			bd.add(e.precedence() >= PREC_BIN ? new JSGroup(e) : e);
 		}
 	}
 
@@ -778,7 +1278,7 @@ class JSIfBuilder {
 	}
 
 	final List clauses = new ArrayList();
-	final JSSym var = new JSSym();
+	JSSym var = new JSSym(); // gets the result
 	final Node node;
 
 	JSIfBuilder(Node node) {
@@ -787,9 +1287,21 @@ class JSIfBuilder {
 
 	JSIfBuilder add(JSExpr cond, JSCode body) {
 		clauses.add(new Clause(cond, body));
+		// with a last branch the result is set whichever branch runs
+		if (cond == null || cond == JSCode.TRUE)
+			var.assigned = true;
 		return this;
 	}
 
+	/**
+	 * The if statement alone, for bodies which do not give a value.
+	 */
+	JSStat stat() {
+		IfStat ret = new IfStat();
+		ret.bound = true;
+		return ret;
+	}
+
 	JSBlock block() {
 		final JSBlock cd = new JSBlock("if", node);
 		cd.bind(var, JSCode.UNDEF, null);
@@ -899,17 +1411,166 @@ class JSBinOp extends JSExpr {
 			if (isSimpleType(right) && isSimpleType(left))
 				opr = op + "=";
 		}
+		if (op == "div" && scope != null && scope.std("div"))
+			return div(left, right, node);
 		if (opr == null) {
 			return JSApply.create(
 					JSApply.create(scope.ref(op,node), left, node).toExpr(),
 					right, node);
 		}
-		return new JSBinOp(opr, left, right, node);
+		JSExpr folded = fold(Symbols.intern(opr), left, right, node);
+		return folded != null ? folded : new JSBinOp(opr, left, right, node);
+	}
+
+	private static int toInt32(double v) {
+		return (int) (long) v;
+	}
+
+	/**
+	 * Whether expr is a number known to be a 32 bit integer (the result
+	 * of a bit operation or a variable bound to one).
+	 */
+	static boolean int32(JSExpr expr) {
+		if (expr instanceof JSGroup)
+			return int32(((JSGroup) expr).expr);
+		if (expr instanceof JSSym)
+			return ((JSSym) expr).int32;
+		if (expr instanceof JSLitExpr) {
+			Double v = ((JSLitExpr) expr).number();
+			return v != null && v.doubleValue() == (int) v.doubleValue();
+		}
+		if (expr instanceof JSBinOp) {
+			String op = ((JSBinOp) expr).op;
+			return op == "<<" || op == ">>" || op == "&" || op == "|"
+					|| op == "^";
+		}
+		return false;
+	}
+
+	// whether the 32 bit integer expr is known not to be negative
+	private static boolean nonNegative(JSExpr expr) {
+		if (expr instanceof JSGroup)
+			return nonNegative(((JSGroup) expr).expr);
+		if (expr instanceof JSLitExpr)
+			return int32(expr) && ((JSLitExpr) expr).number() >= 0;
+		if (!(expr instanceof JSBinOp))
+			return false;
+		JSBinOp op = (JSBinOp) expr;
+		if (op.op == "&")
+			return nonNegative(op.left) || nonNegative(op.right);
+		if (op.op == ">>")
+			return nonNegative(op.left);
+		if (op.op == "|" || op.op == "^")
+			return nonNegative(op.left) && nonNegative(op.right);
+		return false;
+	}
+
+	/**
+	 * The std div (dividing and rounding down) as js operators. A 32 bit
+	 * integer divided by a power of two is shifted, and a non-negative
+	 * one divided by other positive numbers is truncated with |0.
+	 */
+	static JSExpr div(JSExpr left, JSExpr right, Node node) {
+		Double d = right instanceof JSLitExpr ? ((JSLitExpr) right)
+				.number() : null;
+		Double n = left instanceof JSLitExpr ? ((JSLitExpr) left)
+				.number() : null;
+		if (n != null && d != null && Math.abs(n) < 9007199254740992.0
+				&& Math.abs(d) < 9007199254740992.0) {
+			JSLitExpr ret = JSLitExpr.number(Math.floor(n / d), node);
+			if (ret != null)
+				return ret;
+		}
+		if (d != null && int32(left) && int32(right) && d > 0) {
+			int k = Integer.numberOfTrailingZeros(d.intValue());
+			if (d.intValue() == 1 << k)
+				return k == 0 ? left : new JSBinOp(">>", left,
+						new JSLitExpr(Integer.toString(k), node), node);
+			if (nonNegative(left))
+				return new JSBinOp("|", new JSBinOp("/", left, right, node),
+						new JSLitExpr("0", node), node);
+		}
+		return new JSObjApply(new JSLitExpr("Math.floor", node),
+				new JSExpr[] { new JSBinOp("/", left, right, node) }, node);
+	}
+
+	/**
+	 * The operation done at compile time, if the operands are literals
+	 * giving a known result (or the boolean one makes the other one
+	 * the result).
+	 */
+	private static JSExpr fold(String op, JSExpr left, JSExpr right,
+			Node node) {
+		JSLitExpr l = left instanceof JSLitExpr ? (JSLitExpr) left : null;
+		JSLitExpr r = right instanceof JSLitExpr ? (JSLitExpr) right : null;
+		Boolean lb = l == null ? null : l.bool();
+		Boolean rb = r == null ? null : r.bool();
+		if (op == "!")
+			return rb == null ? null : new JSLitExpr(rb ? "false" : "true",
+					node);
+		if (op == "&&")
+			return lb != null ? lb ? right : left : rb == Boolean.TRUE ? left
+					: null;
+		if (op == "||")
+			return lb != null ? lb ? left : right : rb == Boolean.FALSE ? left
+					: null;
+		if (r == null || left != null && l == null)
+			return null;
+		if (op == "===" || op == "!==") {
+			Boolean same = null;
+			if (l.string() && r.string() || lb != null && rb != null)
+				same = l.code.equals(r.code);
+			else if (l.number() != null && r.number() != null)
+				same = l.number().doubleValue() == r.number().doubleValue();
+			return same == null ? null : new JSLitExpr(
+					same == (op == "===") ? "true" : "false", node);
+		}
+		Double b = r.number(), a = l == null ? null : l.number();
+		if (b == null || l != null && a == null)
+			return null;
+		if (l == null)
+			return op == "-" ? JSLitExpr.number(-b, node) : null;
+		double x = a, y = b;
+		if (Math.abs(x) >= 9007199254740992.0
+				|| Math.abs(y) >= 9007199254740992.0)
+			return null;
+		if (op == "+")
+			return JSLitExpr.number(x + y, node);
+		if (op == "-")
+			return JSLitExpr.number(x - y, node);
+		if (op == "*")
+			return JSLitExpr.number(x * y, node);
+		if (op == "/")
+			return JSLitExpr.number(x / y, node);
+		if (op == "%")
+			return JSLitExpr.number(x % y, node);
+		if (op == "<<")
+			return JSLitExpr.number(toInt32(x) << toInt32(y), node);
+		if (op == ">>")
+			return JSLitExpr.number(toInt32(x) >> toInt32(y), node);
+		if (op == "&")
+			return JSLitExpr.number(toInt32(x) & toInt32(y), node);
+		if (op == "|")
+			return JSLitExpr.number(toInt32(x) | toInt32(y), node);
+		if (op == "^")
+			return JSLitExpr.number(toInt32(x) ^ toInt32(y), node);
+		boolean res;
+		if (op == "<")
+			res = x < y;
+		else if (op == ">")
+			res = x > y;
+		else if (op == "<=")
+			res = x <= y;
+		else if (op == ">=")
+			res = x >= y;
+		else
+			return null;
+		return new JSLitExpr(res ? "true" : "false", node);
 	}
 
-	private final String op;
-	private final JSExpr left;
-	private final JSExpr right;
+	final String op;
+	final JSExpr left;
+	final JSExpr right;
 
 	private static JSExpr groupBin(JSExpr expr, JSExpr right) {
 		if (expr == null
@@ -922,7 +1583,7 @@ class JSBinOp extends JSExpr {
 
 	JSBinOp(String op, JSExpr left, JSExpr right, Node node) {
 		super(node);
-		this.op = op.intern();
+		this.op = Symbols.intern(op);
 		this.left = groupBin(left, this);
 		this.right = groupBin(right, this);
 	}
@@ -1153,6 +1814,17 @@ class JSObjLiteral extends JSExpr {
 
 	final List fieldValues = new ArrayList();
 
+	/**
+	 * The order in which struct fields are written to literals. Using the
+	 * same order everywhere gives structs with the same fields the same
+	 * shape in the js engine.
+	 */
+	static List<String> fieldOrder(Collection<String> names) {
+		List<String> ret = new ArrayList<String>(names);
+		Collections.sort(ret);
+		return ret;
+	}
+
 	public JSObjLiteral(Node nd) {
 		super(nd);
 	}
@@ -1161,6 +1833,23 @@ class JSObjLiteral extends JSExpr {
 		fieldValues.add(new JSFieldValue(field, value));
 	}
 
+	/**
+	 * The value of the field, if getting it directly from the literal
+	 * would not skip evaluating the other fields.
+	 */
+	JSExpr pureField(String field) {
+		JSExpr ret = null;
+		Iterator it = fieldValues.iterator();
+		while (it.hasNext()) {
+			JSFieldValue v = (JSFieldValue) it.next();
+			if (!JSInline.pure(v.value) && !(v.value instanceof JSFun))
+				return null;
+			if (v.field.equals(field))
+				ret = v.value;
+		}
+		return ret;
+	}
+
 	void code(CodeBuilder bd) {
 		if(fieldValues.isEmpty()){
 			bd.add("{}");
@@ -1190,11 +1879,29 @@ class JSObjLiteral extends JSExpr {
 class JSFun extends JSExpr {
 	final JSBlock body;
 	final JSSym arg;
+	final JSSym[] params; //only for internal multi argument functions
 	final JSSym name;
 	boolean closed = false;
-	Callable<Set<JSSym>> capture; //set to capture vars from 
+	Set<JSSym> capture; //loop vars to capture when created in a loop
+	JSSym hoisted; //created before the loop and referenced by this name
+
+	//set by the analyzer on the outermost function
+	JSScope scope;
+	JSFun tcoBody; //the innermost function holding the body
+	JSSym tcoName; //name used for tail calls to itself
+	JSSym[] tcoArgs; //the arguments of a full application
+	boolean tcoOuter; //tcoArgs belong to this function, not an inner one
 
 	public JSFun(JSSym name, JSSym arg, JSCode body, Node nd) {
+		this(name, arg, null, body, nd);
+	}
+
+	public JSFun(JSSym name, JSSym[] params, JSCode body, Node nd) {
+		this(name, NO_ARG, params, body, nd);
+	}
+
+	private JSFun(JSSym name, JSSym arg, JSSym[] params, JSCode body,
+			Node nd) {
 		super(nd);
 		if (body instanceof JSBlock)
 			this.body = (JSBlock) body;
@@ -1202,6 +1909,7 @@ class JSFun extends JSExpr {
 			this.body = new JSBlock(body.node).addFlat(body);
 
 		this.arg = arg == null ? NO_ARG : arg;
+		this.params = params;
 		this.name = name;
 		// this.body.ret(); is now done in Analyzer because of TCO
 	}
@@ -1210,33 +1918,70 @@ class JSFun extends JSExpr {
 		if (!closed) {
 			closed = true;
 
-			JSCode last = body.last();
-			if (last instanceof JSReturn) {
-				return;
+			ret(body);
+		}
+	}
+
+	// an if giving the value returns from its branches
+	private static void ret(JSBlock body) {
+		JSCode last = body.last();
+		int n = body.stats.size();
+		JSIfBuilder.IfStat ifStat;
+		if (last instanceof JSSym && n > 1
+				&& body.stats.get(n - 2) instanceof JSIfBuilder.IfStat
+				&& !(ifStat = (JSIfBuilder.IfStat) body.stats.get(n - 2)).bound
+				&& ifStat.getBuilder().var == last) {
+			ifStat.bound = true;
+			body.stats.remove(n - 1);
+			body.unbind(ifStat.getBuilder().var);
+			Iterator it = ifStat.getBuilder().clauses.iterator();
+			while (it.hasNext())
+				ret(((JSIfBuilder.Clause) it.next()).body);
+		} else if (last instanceof JSExpr) {
+			body.replaceLast(new JSReturn((JSExpr) last));
+		}
+	}
+
+	/**
+	 * The function itself, for binding it to the hoisted name.
+	 */
+	JSExpr declaration() {
+		return new JSExpr(node) {
+			void code(CodeBuilder bd) {
+				function(bd);
 			}
-			if (last instanceof JSExpr) {
-				body.replaceLast(new JSReturn((JSExpr) last));
+
+			int precedence() {
+				return PREC_FUN;
 			}
-		}
+		};
 	}
 
 	void code(CodeBuilder bd) {
+		if (hoisted != null)
+			bd.add(hoisted);
+		else
+			function(bd);
+	}
+
+	private void function(CodeBuilder bd) {
 		close();
 		//if we have to capture something wrap it in an IIFE
-		Set<JSSym> captVars = null;
-		try{
-			captVars = capture == null ? null : 
-				(captVars = capture.call()).size() == 0 ? null : captVars;
-		}catch(Exception ex){}
+		Set<JSSym> captVars = capture;
 		if(captVars != null)
 			bd.add("(function(")
 			.addAll(captVars,", ")
 			.add("){ return ");
 		
-		bd.add("function");
+		bd.fun().add("function");
 		if (name != null)
 			bd.add(" ").add(name);
-		bd.add("(").add(arg).add(")").add(body);
+		bd.add("(");
+		if (params != null)
+			bd.addAll(params, ", ");
+		else
+			bd.add(arg);
+		bd.add(")").add(body).endFun();
 		
 		if(captVars != null) {
 			bd.add(";} (")
@@ -1246,13 +1991,37 @@ class JSFun extends JSExpr {
 	}
 
 	int precedence() {
-		return PREC_FUN;
+		return hoisted != null ? PREC_LIT : PREC_FUN;
+	}
+
+	static final class TailTarget {
+		final JSSym[] args;
+		final int index;
+		final Set<JSSym> assigned = new HashSet<JSSym>(); //by tail calls
+
+		TailTarget(JSSym[] args, int index) {
+			this.args = args;
+			this.index = index;
+		}
 	}
 
-	static boolean isBodyTCO(final String name, JSSym[] args,
-			final JSBlock body, final boolean testOnly, JSSym retVar) {
+	/**
+	 * Looks for tail calls in body to the targets, which are keyed by the
+	 * binding of the function (a shadowing binding with the same name is
+	 * not the function). With testOnly the called targets are
+	 * added to found (if given). Otherwise the tail calls are rewritten to
+	 * assign the arguments of the target, store its index in which (when
+	 * given) and continue the enclosing loop, while all other results
+	 * are assigned to retVar and break the loop (or are returned, when
+	 * retVar is null).
+	 */
+	static boolean tailCalls(Map<JSScope, TailTarget> targets, JSSym which,
+			final JSBlock body, final boolean testOnly, JSSym retVar,
+			Set<TailTarget> found) {
 		List stats = body.stats;
 		int lastI = stats.size() - 1;
+		if (lastI < 0)
+			return false;
 		JSCode last = (JSCode) stats.get(lastI);
 		JSCode blast = null;
 		if (last instanceof JSSym
@@ -1262,67 +2031,208 @@ class JSFun extends JSExpr {
 			JSIfBuilder.IfStat ifStat = (JSIfBuilder.IfStat) blast;
 			Iterator clit = ifStat.getBuilder().clauses.iterator();
 			boolean hasElse = false;
+			boolean ret = false;
 			while (clit.hasNext()) {
 				JSIfBuilder.Clause cla = (JSIfBuilder.Clause) clit.next();
 				hasElse = hasElse || cla.cond == null;
-				if (isBodyTCO(name, args, cla.body, testOnly, retVar)
-						&& testOnly)
-					return true;
+				if (tailCalls(targets, which, cla.body, testOnly, retVar,
+						found))
+					ret = true;
 			}
 			if (!testOnly) {
 				if (!hasElse)
 					ifStat.getBuilder().add(null, JSCode.BREAK);
 				ifStat.bound = true;
+				// the result variable is not used anymore
+				if (last == ifStat.getBuilder().var) {
+					body.stats.remove(lastI);
+					body.unbind(ifStat.getBuilder().var);
+				}
 			}
-			return false;
+			return ret;
 		}
 
 		if (last instanceof JSApply) {
 			JSApply apl = (JSApply) last;
-			JSExpr[] aplArgs = new JSExpr[args.length];
-			int i = aplArgs.length - 1;
-			while (true) {
-				if (i < 0) { // more applies than args
-					if (!testOnly) {
-						body.bindLast(retVar, false, body.node);
-						body.add(JSCode.BREAK);
-					}
-					return false;
-				}
-				aplArgs[i--] = apl.arg;
-				if (apl.fun instanceof JSApply)
-					apl = (JSApply) apl.fun;
-				else
+			List<JSExpr> aplArgs = new ArrayList<JSExpr>();
+			for (;;) {
+				aplArgs.add(0, apl.arg);
+				if (!(apl.fun instanceof JSApply))
 					break;
+				apl = (JSApply) apl.fun;
 			}
-			if (apl.fun instanceof JSSym && name.equals(((JSSym) apl.fun).sym)
-					&& aplArgs.length == args.length) {
+			TailTarget target = apl.fun instanceof JSSym
+					? targets.get(((JSSym) apl.fun).binding) : null;
+			if (target != null && aplArgs.size() == target.args.length) {
 				// now we have tailcall
-				if (testOnly)
+				if (testOnly) {
+					if (found != null)
+						found.add(target);
 					return true;
+				}
 				// remove last from body
 				body.stats.remove(lastI--);
-				// assign the applyArgs to the original function args
-				for (i = 0; i < aplArgs.length; i++) {
-					JSSym tv = new JSSym();
-					body.bind(tv, aplArgs[i], apl.node);
-					aplArgs[i] = tv;
+				// assign the applyArgs to the function args
+				// (arguments passed on unchanged are left alone)
+				int n = aplArgs.size();
+				JSExpr[] values = new JSExpr[n];
+				int lastImpure = -1;
+				for (int i = 0; i < n; i++) {
+					JSExpr v = aplArgs.get(i);
+					if (target.args[i].equals(v))
+						continue;
+					if (!JSBlock.pure(v))
+						lastImpure = i;
+					else if (target.args[i] == JSCode.NO_ARG)
+						continue;
+					values[i] = v;
+				}
+				// effects happen in the order of the arguments, so the
+				// ones before the last impure are evaluated first
+				for (int i = 0; i <= lastImpure; i++) {
+					if (values[i] == null || values[i] instanceof JSLitExpr)
+						continue;
+					if (target.args[i] == JSCode.NO_ARG) {
+						body.add(values[i]);
+						values[i] = null;
+					} else if (i < lastImpure || readByOthers(target, values, i)) {
+						JSSym tv = new JSSym();
+						body.bind(tv, values[i], apl.node);
+						values[i] = tv;
+					} else {
+						assign(target, values, i, body, apl.node);
+					}
 				}
-				for (i = 0; i < aplArgs.length; i++) {
-					body.add(new JSAssign(args[i], aplArgs[i], apl.node));
+				// the rest is a parallel assignment: an argument is
+				// assigned once no other value reads it, in a cycle one
+				// value waits in a temporary until the end
+				JSBlock deferred = new JSBlock(null);
+				for (;;) {
+					boolean progress = false;
+					int left = 0;
+					for (int i = 0; i < n; i++) {
+						if (values[i] == null)
+							continue;
+						if (readByOthers(target, values, i)) {
+							++left;
+						} else {
+							assign(target, values, i, body, apl.node);
+							progress = true;
+						}
+					}
+					if (left == 0)
+						break;
+					if (!progress) {
+						int i = 0;
+						while (values[i] == null)
+							++i;
+						JSSym tv = new JSSym();
+						body.bind(tv, values[i], apl.node);
+						values[i] = tv;
+						assign(target, values, i, deferred, apl.node);
+					}
 				}
+				body.addFlat(deferred);
+				if (which != null)
+					body.add(new JSAssign(which, new JSLitExpr(
+							Integer.toString(target.index), apl.node),
+							apl.node));
 				// and add a continue
 				body.add(JSCode.CONTINUE);
 				return true;
 			}
 		}
-		if (!testOnly) {
+		if (!testOnly && retVar == null) {
+			// the loop ends the function, so the result is returned
+			if (last instanceof JSExpr)
+				body.replaceLast(new JSReturn((JSExpr) last));
+			else if (!JSBlock.throwing(last) && !(last instanceof JSReturn))
+				body.add(JSReturn.UNDEF);
+		} else if (!testOnly) {
 			body.bindLast(retVar, false, body.node);
 			body.add(JSCode.BREAK);
 		}
 		return false;
 	}
 
+	private static void assign(TailTarget target, JSExpr[] values, int i,
+			JSBlock to, Node node) {
+		to.add(new JSAssign(target.args[i], values[i], node));
+		target.assigned.add(target.args[i]);
+		values[i] = null;
+	}
+
+	// whether some other value still to be assigned reads argument i
+	private static boolean readByOthers(TailTarget target, JSExpr[] values,
+			int i) {
+		for (int j = 0; j < values.length; j++)
+			if (j != i && values[j] != null
+					&& reads(values[j], target.args[i]))
+				return true;
+		return false;
+	}
+
+	/**
+	 * Whether expr may read sym (unknown expressions are assumed to).
+	 */
+	static boolean reads(JSExpr expr, JSSym sym) {
+		if (expr instanceof JSSym)
+			return expr.equals(sym);
+		if (expr instanceof JSLitExpr)
+			return false;
+		if (expr instanceof JSGroup)
+			return reads(((JSGroup) expr).expr, sym);
+		if (expr instanceof JSBinOp) {
+			JSBinOp op = (JSBinOp) expr;
+			return op.left != null && reads(op.left, sym)
+					|| reads(op.right, sym);
+		}
+		if (expr instanceof JSApply)
+			return reads(((JSApply) expr).fun, sym)
+					|| reads(((JSApply) expr).arg, sym);
+		if (expr instanceof JSFieldRef)
+			return reads(((JSFieldRef) expr).obj, sym);
+		if (expr instanceof JSArrRef)
+			return reads(((JSArrRef) expr).arr, sym);
+		if (expr instanceof JSMapRef)
+			return reads(((JSMapRef) expr).map, sym)
+					|| reads(((JSMapRef) expr).key, sym);
+		if (expr instanceof JSConcatStr) {
+			for (Object e : ((JSConcatStr) expr).exprs)
+				if (reads((JSExpr) e, sym))
+					return true;
+			return false;
+		}
+		if (expr instanceof JSObjLiteral) {
+			Iterator it = ((JSObjLiteral) expr).fieldValues.iterator();
+			while (it.hasNext())
+				if (reads(((JSObjLiteral.JSFieldValue) it.next()).value, sym))
+					return true;
+			return false;
+		}
+		if (expr instanceof JSList) {
+			for (Object part : ((JSList) expr).exprsList) {
+				if (!(part instanceof List)) {
+					if (reads((JSExpr) part, sym))
+						return true;
+					continue;
+				}
+				for (Object e : (List) part)
+					if (reads((JSExpr) e, sym))
+						return true;
+			}
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The returned expression, if code is a return statement.
+	 */
+	static JSCode returned(JSCode code) {
+		return code instanceof JSReturn ? ((JSReturn) code).expr : code;
+	}
+
 	private static class JSReturn extends JSStat {
 		static final JSReturn UNDEF = new JSReturn(JSCode.UNDEF);
 		final JSExpr expr;
@@ -1361,3 +2271,240 @@ class IIFEJSExpr extends JSExpr {
 	}
 
 }
+
+/**
+ * Template of a small std function, which is put in place of its full
+ * applications instead of calling the curried function.
+ */
+final class JSInline {
+	// largest template (counted in expressions) which is inlined
+	static final int BUDGET = 12;
+	private static final Pattern SCRIPT_NAME = Pattern
+			.compile("[a-zA-Z_$][0-9a-zA-Z_$]*|'[^']*'|\"[^\"]*\"");
+	private static final Set<String> SCRIPT_GLOBALS = new HashSet<String>(
+			Arrays.asList(new String[] { "Math", "Number", "String", "Array",
+					"Object", "RegExp", "null", "undefined", "true", "false",
+					"typeof", "instanceof", "new", "NaN", "Infinity" }));
+	private static final String[] LAZY_OPS = { "&&", "||", "?" };
+
+	final int arity;
+	private final JSSym[] params;
+	private final JSExpr body;
+	private final int[] uses;
+	private final boolean[] eager; // some use is always evaluated
+	private int lazy; // depth in conditionally evaluated operands
+	private int size;
+	private boolean calls; // the body calls some function
+	private boolean ordered = true; // params first used in their order
+	private int lastUse = -1;
+
+	private JSInline(JSSym[] params, JSExpr body) {
+		this.arity = params.length;
+		this.params = params;
+		this.body = body;
+		this.uses = new int[params.length];
+		this.eager = new boolean[params.length];
+	}
+
+	/**
+	 * The template of fun, if it is a curried function just returning
+	 * a small enough expression of its arguments.
+	 */
+	static JSInline of(JSFun fun) {
+		List<JSSym> params = new ArrayList<JSSym>();
+		JSCode body;
+		for (;;) {
+			if (fun.params != null || fun.hoisted != null
+					|| fun.capture != null || fun.body.stats.size() != 1)
+				return null;
+			params.add(fun.arg);
+			body = JSFun.returned((JSCode) fun.body.stats.get(0));
+			if (!(body instanceof JSFun) || ((JSFun) body).name != null)
+				break;
+			fun = (JSFun) body;
+		}
+		if (!(body instanceof JSExpr))
+			return null;
+		JSInline ret = new JSInline(
+				(JSSym[]) params.toArray(new JSSym[params.size()]),
+				(JSExpr) body);
+		if (ret.subst(ret.body, null, null) == null || ret.size > BUDGET)
+			return null;
+		return ret;
+	}
+
+	static boolean pure(JSExpr arg) {
+		return arg instanceof JSSym || arg instanceof JSLitExpr
+				&& arg != JSCode.EMPTY_LIST;
+	}
+
+	/**
+	 * The body with the args put in place of the parameters, or null
+	 * when this would change what or in which order is evaluated.
+	 */
+	JSExpr apply(JSExpr[] args, Node where) {
+		boolean effects = false;
+		for (int i = 0; i < arity; ++i)
+			effects |= !pure(args[i]) && !(args[i] instanceof JSFun);
+		for (int i = 0; i < arity; ++i) {
+			JSExpr arg = args[i];
+			if (arg instanceof JSLitExpr && ((JSLitExpr) arg).constant())
+				continue;
+			if (arg instanceof JSSym) {
+				if (effects && uses[i] > 1)
+					return null;
+			} else if (arg instanceof JSFun) {
+				if (uses[i] > 1)
+					return null;
+			} else if (uses[i] != 1 || calls || !ordered
+					|| !eager[i] && !pure(arg)) {
+				return null;
+			}
+		}
+		return subst(body, args, where);
+	}
+
+	private int param(String jsCode) {
+		for (int i = 0; i < params.length; ++i)
+			if (params[i] != JSCode.NO_ARG
+					&& params[i].jsCode().equals(jsCode))
+				return i;
+		return -1;
+	}
+
+	private void use(int param, boolean lazy) {
+		eager[param] |= !lazy;
+		if (uses[param]++ == 0) {
+			ordered &= param > lastUse;
+			lastUse = param;
+		}
+	}
+
+	// with args == null the body is checked and measured
+	private JSExpr subst(JSExpr e, JSExpr[] args, Node where) {
+		JSExpr l, r;
+		if (args == null)
+			++size;
+		if (e instanceof JSSym) {
+			int i = param(((JSSym) e).jsCode());
+			if (i < 0)
+				return null;
+			if (args == null) {
+				use(i, lazy != 0);
+				return e;
+			}
+			return args[i];
+		}
+		if (e instanceof JSLitExpr)
+			return e;
+		if (e instanceof JSGroup)
+			return subst(((JSGroup) e).expr, args, where);
+		if (e instanceof JSBinOp) {
+			JSBinOp op = (JSBinOp) e;
+			boolean cond = op.op == "&&" || op.op == "||";
+			l = op.left == null ? null : subst(op.left, args, where);
+			if (cond)
+				++lazy;
+			r = subst(op.right, args, where);
+			if (cond)
+				--lazy;
+			return r == null || l == null && op.left != null ? null
+					: new JSBinOp(op.op, l, r, where);
+		}
+		if (e instanceof JSApply) {
+			calls = true;
+			JSApply apl = (JSApply) e;
+			l = subst(apl.fun, args, where);
+			r = subst(apl.arg, args, where);
+			return l == null || r == null ? null
+					: JSApply.create(l, r, where).toExpr();
+		}
+		if (e instanceof JSFieldRef) {
+			JSFieldRef ref = (JSFieldRef) e;
+			if ((l = subst(ref.obj, args, where)) == null)
+				return null;
+			JSFieldRef ret = new JSFieldRef(l, "", where);
+			ret.field = ref.field;
+			return ret;
+		}
+		if (e instanceof JSMapRef) {
+			JSMapRef ref = (JSMapRef) e;
+			l = subst(ref.map, args, where);
+			r = subst(ref.key, args, where);
+			return l == null || r == null ? null
+					: new JSMapRef(l, r, ref.access);
+		}
+		if (e instanceof JSObjLiteral) {
+			JSObjLiteral ret = new JSObjLiteral(where);
+			Iterator i = ((JSObjLiteral) e).fieldValues.iterator();
+			while (i.hasNext()) {
+				JSObjLiteral.JSFieldValue f = (JSObjLiteral.JSFieldValue) i
+						.next();
+				if ((l = subst(f.value, args, where)) == null)
+					return null;
+				ret.add(f.field, l);
+			}
+			return ret;
+		}
+		if (e instanceof SimpleJSExpr && ((SimpleJSExpr) e).kind == "script")
+			return script(((SimpleJSExpr) e).code, args, where);
+		return null;
+	}
+
+	// simple one line script expressions using only the parameters
+	private JSExpr script(String code, final JSExpr[] args, Node where) {
+		if (code.indexOf(';') >= 0 || code.indexOf('{') >= 0
+				|| code.indexOf('\n') >= 0)
+			return null;
+		calls |= code.indexOf('(') >= 0;
+		// names after the first &&, || or ?: may not be evaluated
+		int cond = code.length();
+		for (int i = 0; i < LAZY_OPS.length; ++i) {
+			int at = code.indexOf(LAZY_OPS[i]);
+			if (at >= 0 && at < cond)
+				cond = at;
+		}
+		final List<Object> parts = new ArrayList<Object>();
+		Matcher m = SCRIPT_NAME.matcher(code);
+		int last = 0;
+		while (m.find()) {
+			String name = m.group();
+			if (name.charAt(0) == '\'' || name.charAt(0) == '"'
+					|| m.start() > 0 && code.charAt(m.start() - 1) == '.')
+				continue; // string or member name
+			int i = param(name);
+			if (i < 0) {
+				if (SCRIPT_GLOBALS.contains(name))
+					continue;
+				return null;
+			}
+			if (args == null) {
+				use(i, lazy != 0 || m.start() > cond);
+				++size;
+			}
+			parts.add(code.substring(last, m.start()));
+			parts.add(args == null ? params[i] : args[i]);
+			last = m.end();
+		}
+		parts.add(code.substring(last));
+		return new JSExpr(where) {
+			void code(CodeBuilder bd) {
+				for (Object part : parts) {
+					if (part instanceof String) {
+						bd.add((String) part);
+					} else {
+						JSExpr arg = (JSExpr) part;
+						if (arg instanceof JSSym) // not 1.x
+							bd.add(arg);
+						else
+							bd.add("(").add(arg).add(")");
+					}
+				}
+			}
+
+			int precedence() {
+				return PREC_RL;
+			}
+		};
+	}
+}
@@ -206,7 +206,7 @@ class JavaSource implements Opcodes {
                 type = "[".concat(type);
                 id = id.substring(1);
             }
-            type = type.intern();
+            type = Symbols.intern(type);
             if (target == null)
                 return type;
             n = new JavaNode();
@@ -215,7 +215,7 @@ class JavaSource implements Opcodes {
                 type = "void";
                 n.name = "<init>";
             } else {
-                n.name = id.intern();
+                n.name = Symbols.intern(id);
             }
             n.type = type;
             n.field = target.field;
@@ -185,7 +185,7 @@ class JavaTypeReader implements ClassVisitor, Opcodes {
   //          }
             List l = parseSig(1, signature);
             m.sig = name + signature;
-            m.name = name.intern();
+            m.name = Symbols.intern(name);
             m.access = access;
             int argc = l.size() - 1;
             m.returnType = (YType) l.get(argc);
@@ -473,7 +473,7 @@ class JavaType implements Cloneable {
     }
 
     private JavaType(String description) {
-        this.description = description.intern();
+        this.description = Symbols.intern(description);
     }
 
     static JavaType createNewClass(String className, JavaClass impl) {
@@ -781,22 +781,27 @@ class JavaType implements Cloneable {
              mapKind.type == YetiType.VAR)) {
             YType fp = from.param[0].deref();
             YType tp = to.param[0].deref();
-            try {
-                if (fp.javaType != null &&
-                    fp.javaType.description.length() == 1) {
-                    char fromPrimitive = fp.javaType.description.charAt(0);
+            if (fp.javaType != null &&
+                fp.javaType.description.length() == 1) {
+                char fromPrimitive = fp.javaType.description.charAt(0);
+                // both or neither, the index mustn't stay bound alone
+                TypeTrail trail = TypeTrail.begin();
+                try {
                     YetiType.unify(to.param[1], YetiType.NO_TYPE);
                     YetiType.unify(to.param[0],
                         fromPrimitive == 'Z' ? YetiType.BOOL_TYPE :
                         fromPrimitive == 'C' ? YetiType.STR_TYPE :
                         YetiType.NUM_TYPE);
-                } else if (tp.type == YetiType.VAR) {
-                    if (fp != tp)
-                        YetiType.unifyToVar(tp, fp);
-                } else if (isAssignable(where, tp, fp, false) < 0) {
+                    trail.commit();
+                } catch (TypeException ex) {
                     return false;
+                } finally {
+                    trail.rollback(); // no-op after commit
                 }
-            } catch (TypeException ex) {
+            } else if (tp.type == YetiType.VAR) {
+                if (fp != tp && !YetiType.tryUnify(tp, fp))
+                    return false;
+            } else if (isAssignable(where, tp, fp, false) < 0) {
                 return false;
             }
             mapKind.type = YetiType.LIST_MARKER;
@@ -855,7 +860,7 @@ class JavaType implements Cloneable {
     private Method resolveByArgs(YetiParser.Node n, Method[] ma,
                                  String name, Code[] args,
                                  YType objType) {
-    	name = name.intern();
+    	name = Symbols.intern(name);
         Method mg = new Method();
         mg.arguments = new YType[args.length];
         for(int j=0; j < args.length;j++) {
@@ -1135,7 +1140,7 @@ class JavaType implements Cloneable {
         }
         String descr = (String) JAVA_PRIM.get(name);
         YType t = descr != null ? new YType(descr) :
-                   YetiType.resolveFullClassType(arrays == 0 ? name : name.intern(),
+                   YetiType.resolveFullClassType(arrays == 0 ? name : Symbols.intern(name),
                                              n);
         while (--arrays >= 0)
             t = new YType(YetiType.JAVA_ARRAY, new YType[] { t });
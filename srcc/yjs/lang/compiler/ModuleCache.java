@@ -0,0 +1,116 @@
+/**
+ * YJS module cache.
+ * Copyright (c) 2007-2014 Christian Essl
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package yjs.lang.compiler;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Modules compiled by earlier compiles in this JVM (watch and server
+ * mode create a new Compiler for each compile).
+ *
+ * An entry is keyed by the source file (or module name), the compile
+ * flags and the global flags, and is used only when the source text is
+ * the same and each module it loaded still resolves to the very same
+ * ModuleType in the new compile. The compiler then uses the cached
+ * type and JS code instead of parsing and analyzing the module again.
+ *
+ * Only modules are cached, and only when their compile did not depend
+ * on state outside of the key (see Compiler.noCache). The cached
+ * types are shared by the compiles, like the std type already is
+ * shared by all modules of one compile.
+ */
+final class ModuleCache {
+	private static final int MAX_SIZE = 64;
+
+	static final class Entry {
+		final char[] source;
+		final int hash;
+		final String[] preload;
+		final ModuleType type;
+		// load node, module name and module type of each loaded module
+		final Object[] deps;
+		// warnings of the module itself, reported again when used
+		final Object[] warnings;
+		// JS inlines registered by the module (std only)
+		final Map inline;
+
+		Entry(char[] source, String[] preload, ModuleType type,
+				Object[] deps, Object[] warnings, Map inline) {
+			this.source = source;
+			this.hash = Arrays.hashCode(source);
+			this.preload = preload;
+			this.type = type;
+			this.deps = deps;
+			this.warnings = warnings;
+			this.inline = inline;
+		}
+	}
+
+	//least recently used entries are dropped first, the soft references
+	//let the garbage collector drop them under memory pressure
+	private static final Map cache = new LinkedHashMap(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+
+	private ModuleCache() {
+	}
+
+	static String key(String source, int flags, int globalFlags) {
+		return source == null ? null
+				: source + '\0' + flags + '\0' + globalFlags;
+	}
+
+	static Entry get(String key, char[] source, String[] preload) {
+		SoftReference ref;
+		synchronized (cache) {
+			ref = (SoftReference) cache.get(key);
+		}
+		Entry e = ref == null ? null : (Entry) ref.get();
+		return e != null && e.hash == Arrays.hashCode(source)
+				&& Arrays.equals(e.source, source)
+				&& Arrays.equals(e.preload, preload) ? e : null;
+	}
+
+	static void put(String key, Entry e) {
+		synchronized (cache) {
+			cache.put(key, new SoftReference(e));
+		}
+	}
+
+	static void remove(String key) {
+		synchronized (cache) {
+			cache.remove(key);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/**
+ * YJS symbol table.
+ * Copyright (c) 2007-2014 Christian Essl
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. The name of the author may not be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR "AS IS" AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package yjs.lang.compiler;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Canonical instances of the names, so the compiler can compare them
+ * by identity (kind == "lambda", scope.name == sym).
+ *
+ * The canonical instance is the one from the JVM string pool, which
+ * keeps the names identical to the string literals in the compiler.
+ * The pool is asked only when a name is seen for the first time, after
+ * that the lock-free table answers, also for concurrent compiles.
+ */
+final class Symbols {
+	//bounds the table in long running compile servers
+	private static final int MAX_SIZE = 1 << 16;
+
+	private static final ConcurrentHashMap<String, String> table =
+			new ConcurrentHashMap<String, String>(1024);
+
+	private Symbols() {
+	}
+
+	static String intern(String name) {
+		String sym = table.get(name);
+		if (sym == null) {
+			sym = name.intern();
+			if (table.size() >= MAX_SIZE)
+				table.clear();
+			table.put(sym, sym);
+		}
+		return sym;
+	}
+
+	static String intern(char[] src, int offset, int count) {
+		return intern(new String(src, offset, count));
+	}
+}
@@ -238,7 +238,7 @@ class TypeAttr extends Attribute {
             Map res = new IdentityHashMap();
             while (in[p] != END) {
                 YType t = read();
-                res.put(cr.readUTF8(p, buf).intern(), t);
+                res.put(Symbols.intern(cr.readUTF8(p, buf)), t);
                 p += 2;
             }
             ++p;
@@ -352,7 +352,7 @@ class TypeAttr extends Attribute {
             while (in[p] != END) {
                 String name = cr.readUTF8(p, buf);
                 p += 2;
-                result.put(name.intern(), readArray());
+                result.put(Symbols.intern(name), readArray());
             }
             ++p;
             return result;
@@ -680,7 +680,7 @@ class TypePattern {
                     System.arraycopy(ids, 0, target.idx, 0, n);
                     if (field != null) {
                         if (field.charAt(0) == ';') {
-                            field = field.substring(1).intern();
+                            field = Symbols.intern(field.substring(1));
                             target.mutable = true;
                         }
                         target.field = field;
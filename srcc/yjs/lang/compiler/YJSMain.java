@@ -101,7 +101,9 @@ public class YJSMain {
 			+ "                 for changes and reruns\n\n"
 			+ "  -server [port] start the httpd res-server on the opt. port\n"
 			+ "                 port defaults to 9090 '\n\n"
-			+ "  -t             print type";
+			+ "  -t             print type\n\n"
+			+ "  -es-map        hash maps are ES Map objects (needs an ES6\n"
+			+ "                 runtime), plain js objects by default";
 
 	public File outDir = null;
 	public boolean parseTree = false;
@@ -112,6 +114,7 @@ public class YJSMain {
 	public boolean printType = false;
 	public String[] sourcePathes;
 	public File watchDir = null;
+	public boolean esMap = false;
 
 	static void exitErr(String msg) {
 		System.err.println(msg);
@@ -170,6 +173,8 @@ public class YJSMain {
 				yjs.parseTree = true;
 			} else if ("-t".equals(a)) {
 				yjs.printType = true;
+			} else if ("-es-map".equals(a)) {
+				yjs.esMap = true;
 			} else if ("-sp".equals(a)) {
 				if (++i < args.length) {
 					String ps = args[i];
@@ -298,6 +303,8 @@ public class YJSMain {
 		Compiler ctx = new Compiler();
 		ctx.classPath = new ClassFinder(new String[] {}, "");
 		ctx.writer = null;
+		if (esMap)
+			ctx.globalFlags |= Compiler.GF_ES_MAP;
 		if (sourcePathes != null)
 			ctx.setSourcePath(this.sourcePathes);
 		return ctx;
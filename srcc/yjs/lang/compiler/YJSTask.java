@@ -48,6 +48,7 @@ public class YJSTask extends MatchingTask {
 	private String target;
 	private Path classPath;
 	private boolean run;
+	private boolean esMap;
 
 	public void setSrc(String src) {
 		FileSet fs = new FileSet();
@@ -63,6 +64,10 @@ public class YJSTask extends MatchingTask {
 		this.run = r;
 	}
 
+	public void setEsMap(boolean esMap) {
+		this.esMap = esMap;
+	}
+
 	public void setSrcDir(String dir) {
 		this.srcDir = new java.io.File(dir);
 	}
@@ -122,6 +127,7 @@ public class YJSTask extends MatchingTask {
 				yjs.sourcePathes = srcDirsA;
 				yjs.outDir = outDir;
 				yjs.run = yjs.printType = this.run;
+				yjs.esMap = this.esMap;
 				yjs.source = (String) it.next();
 				this.log("Compiling/running " + (count++) + " of "
 						+ (files.size()) + ": " + yjs.source);
@@ -248,7 +248,7 @@ public final class YetiAnalyzer extends YetiType {
             String name = arg.name;
             Map m = members;
             if (name.charAt(0) == '.') {
-                name = name.substring(1).intern();
+                name = Symbols.intern(name.substring(1));
                 m = members_;
             }
             if (m.put(name, tp[i]) != null)
@@ -375,7 +375,7 @@ public final class YetiAnalyzer extends YetiType {
         if (c == '~') {
             expectsParam(node, 0);
             t = JavaType.typeOfName(
-                name.substring(1).replace('.', '/').intern(), node);
+                Symbols.intern(name.substring(1).replace('.', '/')), node);
         } else if (c == '\'' || c == '^') {
             t = (YType) free.get(name);
             if (t == null) {
@@ -831,7 +831,7 @@ public final class YetiAnalyzer extends YetiType {
             members:
                 while (j.hasNext()) {
                     Map.Entry e = (Map.Entry) j.next();
-                    String name = ((String) e.getKey()).intern();
+                    String name = Symbols.intern((String) e.getKey());
                     if (noRoot)
                         for (Scope i = ROOT_SCOPE; i != null; i = i.outer)
                             if (i.name == name)
@@ -854,7 +854,7 @@ public final class YetiAnalyzer extends YetiType {
             YType[] typeDef = (YType[]) e.getValue();
             String name = (String) e.getKey();
             if (prefix != null)
-                name = prefix.concat(name).intern();
+                name = Symbols.intern(prefix.concat(name));
             ArrayList vars = new ArrayList();
             getAllTypeVar(vars, null, typeDef[typeDef.length - 1], false);
             scope = new TypeScope(scope, name, typeDef, m);
@@ -987,6 +987,7 @@ public final class YetiAnalyzer extends YetiType {
                         " contains free type variable in #1", null);
                 }
             }
+            scope.ctx.compiler.noCache = true; // numbered per compile
             synchronized (scope.ctx.opaqueTypes) {
                 type = new YType(scope.ctx.opaqueTypes.size() + OPAQUE_TYPES,
                                  new YType[def.length - 1]);
@@ -43,7 +43,9 @@ package yjs.lang.compiler;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import yeti.lang.Core;
 import yeti.lang.Num;
@@ -581,6 +583,15 @@ interface YetiParser {
             { null }, // loop
         };
         private static final int FIRST_OP_LEVEL = 3;
+        // OPS level indexes by operator, to not scan OPS for each token
+        private static final Map OP_INDEX = new IdentityHashMap();
+        static {
+            for (int i = OPS.length; --i >= 0;)
+                for (int j = OPS[i].length; --j >= 0;)
+                    if (OPS[i][j] != null)
+                        OP_INDEX.put(OPS[i][j], Integer.valueOf(i));
+        }
+        private static final int SYM_CACHE_SIZE = 512;
         private static final int COMP_OP_LEVEL = opLevel("<");
         static final int NOT_OP_LEVEL = COMP_OP_LEVEL + 1;
         static final int LIST_OP_LEVEL = NOT_OP_LEVEL + 3;
@@ -588,6 +599,8 @@ interface YetiParser {
         private static final Eof EOF = new Eof("EOF");
         private char[] src;
         private int p;
+        // recently read symbols, so repeated ones aren't allocated again
+        private final String[] symCache = new String[SYM_CACHE_SIZE];
         private Node eofWas;
         private int flags;
         private int line = 1;
@@ -619,6 +632,23 @@ interface YetiParser {
             return line;
         }
 
+        private String sym(int from, int count) {
+            char[] src = this.src;
+            int h = count;
+            for (int i = from + count; --i >= from;)
+                h = h * 31 + src[i];
+            String s = symCache[(h ^ h >>> 9) & (SYM_CACHE_SIZE - 1)];
+            if (s != null && s.length() == count) {
+                int i = count;
+                while (--i >= 0 && s.charAt(i) == src[from + i]);
+                if (i < 0)
+                    return s;
+            }
+            s = Symbols.intern(src, from, count);
+            symCache[(h ^ h >>> 9) & (SYM_CACHE_SIZE - 1)] = s;
+            return s;
+        }
+
         private int directive(int from, int to) {
             boolean doc = src[from] != '%';;
             if (doc && (flags & Compiler.GF_DOC) == 0)
@@ -743,7 +773,7 @@ interface YetiParser {
                     c == '/' && (i + 1 >= src.length ||
                                  (c = src[i + 1]) != '/' && c != '*'))) ++i;
             if (i != p) {
-                String s = new String(src, p, i - p).intern();
+                String s = sym(p, i - p);
                 p = i;
                 if (s == "=" || s == ":")
                     return new XNode(s).pos(line, col);
@@ -751,12 +781,13 @@ interface YetiParser {
                     return new BinOp(FIELD_OP, 0, true).pos(line, col);
                 if (s == "#")
                     return readObjectRef().pos(line, col);
-                for (i = OPS.length; --i >= 0;)
-                    for (int j = OPS[i].length; --j >= 0;)
-                        if (OPS[i][j] == s)
-                            return new BinOp(s, i + FIRST_OP_LEVEL,
-                                             i != LIST_OP_LEVEL - FIRST_OP_LEVEL)
-                                         .pos(line, col);
+                Integer op = (Integer) OP_INDEX.get(s);
+                if (op != null) {
+                    i = op.intValue();
+                    return new BinOp(s, i + FIRST_OP_LEVEL,
+                                     i != LIST_OP_LEVEL - FIRST_OP_LEVEL)
+                                 .pos(line, col);
+                }
                 if (s == "->")
                     return new BinOp("->", 0, true).pos(line, col);
                 return new BinOp(s, FIRST_OP_LEVEL + 2, true).pos(line, col);
@@ -777,9 +808,9 @@ interface YetiParser {
                 }
             }
             while (++i < src.length && ((c = src[i]) > '~' || CHS[c] == 'x'));
-            String s = new String(src, p, i - p);
+            // Sym's are expected to have interned strings
+            String s = sym(p, i - p);
             p = i;
-            s = s.intern(); // Sym's are expected to have interned strings
             Node res;
             if (s == "if") {
                 res = readIf();
@@ -847,12 +878,12 @@ interface YetiParser {
                             throw new CompileException(line, col,
                                         "Unterminated ``identifier");
                     } while (src[p - 1] != '`' || src[p] != '`');
-                    s = new String(src, i + 1, p - i - 2).intern();
+                    s = Symbols.intern(src, i + 1, p - i - 2);
                     res = new XNode("``", new Sym(s));
                     ++p;
                 } else {
                     ++p;
-                    res = new BinOp(s.substring(1).intern(),
+                    res = new BinOp(Symbols.intern(s.substring(1)),
                                     FIRST_OP_LEVEL + 2, true);
                 }
             }
@@ -992,7 +1023,7 @@ interface YetiParser {
             Node[] ex = new Node[args.length + 1];
             for (int i = 0; i < dimensions; ++i)
                 name += "[]";
-            ex[0] = new Sym(name.intern());
+            ex[0] = new Sym(Symbols.intern(name));
             System.arraycopy(args, 0, ex, 1, args.length);
             return new XNode(dimensions == 0 ? "new" : "new-array", ex);
         }
@@ -1008,7 +1039,7 @@ interface YetiParser {
                             "Expecting java identifier after #");
             }
             p = i;
-            return new ObjectRefOp(new String(src, st, i - st).intern(),
+            return new ObjectRefOp(sym(st, i - st),
                                    i < src.length && src[i] == '('
                                         ? readArgs() : null);
         }
@@ -1145,7 +1176,7 @@ interface YetiParser {
             while (src.length > p + 1 && src[p] == '[' && src[p + 1] == ']')
                 p += 2;
             if (s != p)
-                t.sym = t.sym.concat(new String(src, s, p - s)).intern();
+                t.sym = Symbols.intern(t.sym.concat(new String(src, s, p - s)));
             return t;
         }
 
@@ -1329,7 +1360,7 @@ interface YetiParser {
                 ++p;
                 result += "/";
             }
-            Sym sym = new Sym(result.intern());
+            Sym sym = new Sym(Symbols.intern(result));
             sym.pos(first.line, first.col);
             return sym;
         }
@@ -1679,7 +1710,7 @@ interface YetiParser {
                     if (field instanceof BinOp &&
                         ((BinOp) field).op == FIELD_OP &&
                         (field = fetch()) instanceof Sym) {
-                        fieldName = ".".concat(field.sym()).intern();
+                        fieldName = Symbols.intern(".".concat(field.sym()));
                     } else if (!(field instanceof Sym)) {
                         if (isVar)
                             throw new CompileException(field,
@@ -1736,7 +1767,7 @@ interface YetiParser {
                                 "Expected type identifier, not '" +
                                 src[i] + "' in the type expression");
                 p = i;
-                String sym = new String(src, start, i - start).intern();
+                String sym = sym(start, i - start);
                 ArrayList param = new ArrayList();
                 if (dot == '_') { // Tag variant
                     String doc = yetiDocStr;
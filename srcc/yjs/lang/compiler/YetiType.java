@@ -32,12 +32,14 @@
 
 package yjs.lang.compiler;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 class YType {
     int type;
@@ -82,14 +84,19 @@ class YType {
     }
 
     YType deref() {
+        // plain (unbound) types are the common case, and linking
+        // their doc to themselves would carry no information anyway
+        if (ref == null)
+            return this;
         YType res = this;
         while (res.ref != null) {
             res = res.ref;
         }
-        for (YType next, type = this; type.ref != null; type = next) {
-            next = type.ref;
-            type.ref = res;
-        }
+        if (res != ref && !TypeTrail.active())
+            for (YType next, type = this; type.ref != null; type = next) {
+                next = type.ref;
+                type.ref = res;
+            }
         if ((res.type <= 0 || res.type > YetiType.PRIMITIVE_END) &&
                 res.doc == null)
             res.doc = this;
@@ -127,7 +134,6 @@ class TypeException extends Exception {
 
     TypeException(String what) {
         super(what);
-        trace = new ArrayList();
     }
 
     TypeException(YType a_, YType b_) {
@@ -135,7 +141,6 @@ class TypeException extends Exception {
         b = b_;
         sep = " is not ";
         ext = "";
-        trace = new ArrayList();
     }
 
     TypeException(YType a_, String sep_, YType b_, String ext_) {
@@ -143,7 +148,20 @@ class TypeException extends Exception {
         b = b_;
         sep = sep_;
         ext = ext_;
-        trace = new ArrayList();
+    }
+
+    // Type errors are control flow for the unification and often
+    // caught without ever being reported, so the stack isn't captured.
+    public Throwable fillInStackTrace() {
+        return this;
+    }
+
+    void addTrace(Object field, YType a, YType b) {
+        if (trace == null)
+            trace = new ArrayList();
+        trace.add(field);
+        trace.add(a);
+        trace.add(b);
     }
 
     public String getMessage() {
@@ -158,6 +176,110 @@ class TypeException extends Exception {
     }
 }
 
+/*
+ * Undo log for trial unifications. While a trail is open on the current
+ * thread, every type node is saved before unification mutates it, so
+ * that a failed trial can be rolled back. Outside of trials the save
+ * points cost only a lookup of the current thread's trail.
+ */
+final class TypeTrail {
+    private static final ThreadLocal current = new ThreadLocal();
+
+    private final TypeTrail outer;
+    private Object[] log = new Object[16];
+    private int size;
+
+    private TypeTrail(TypeTrail outer) {
+        this.outer = outer;
+    }
+
+    static TypeTrail begin() {
+        TypeTrail trail = new TypeTrail((TypeTrail) current.get());
+        current.set(trail);
+        return trail;
+    }
+
+    // deref mustn't shorten reference chains that a rollback may cut
+    static boolean active() {
+        return current.get() != null;
+    }
+
+    static void save(YType t) {
+        TypeTrail trail = (TypeTrail) current.get();
+        if (trail != null)
+            trail.record(t);
+    }
+
+    private void record(YType t) {
+        YType s = new YType(t.depth);
+        s.type = t.type;
+        s.param = t.param;
+        s.ref = t.ref;
+        s.flags = t.flags;
+        s.field = t.field;
+        s.javaType = t.javaType;
+        s.requiredMembers = t.requiredMembers;
+        s.allowedMembers = t.allowedMembers;
+        // member maps are also modified in place
+        Map req = t.requiredMembers == null ? null
+                    : new IdentityHashMap(t.requiredMembers);
+        Map allow = t.allowedMembers == null ? null
+                    : new IdentityHashMap(t.allowedMembers);
+        add(new Object[] { t, s, req, allow }, 0);
+    }
+
+    // keeps the changes, an enclosing trial may still roll them back
+    void commit() {
+        end();
+        if (outer != null)
+            for (int i = 0; i < size; i += 4)
+                outer.add(log, i);
+        size = 0;
+    }
+
+    private void add(Object[] entries, int at) {
+        if (size + 4 > log.length) {
+            Object[] tmp = new Object[log.length * 2];
+            System.arraycopy(log, 0, tmp, 0, size);
+            log = tmp;
+        }
+        System.arraycopy(entries, at, log, size, 4);
+        size += 4;
+    }
+
+    void rollback() {
+        end();
+        while (size > 0) {
+            Map allow = (Map) log[--size];
+            Map req = (Map) log[--size];
+            YType s = (YType) log[--size];
+            YType t = (YType) log[--size];
+            t.type = s.type;
+            t.param = s.param;
+            t.ref = s.ref;
+            t.depth = s.depth;
+            t.flags = s.flags;
+            t.field = s.field;
+            t.javaType = s.javaType;
+            t.requiredMembers = s.requiredMembers;
+            t.allowedMembers = s.allowedMembers;
+            if (req != null) {
+                s.requiredMembers.clear();
+                s.requiredMembers.putAll(req);
+            }
+            if (allow != null) {
+                s.allowedMembers.clear();
+                s.allowedMembers.putAll(allow);
+            }
+        }
+    }
+
+    private void end() {
+        if (current.get() == this)
+            current.set(outer);
+    }
+}
+
 class Scope {
     Scope outer;
     String name;
@@ -487,6 +609,7 @@ public class YetiType implements YetiParser {
                 limitDepth(type.param[i], maxDepth, setFlag);
             type.seen = false;
         } else {
+            TypeTrail.save(type);
             if (type.depth > maxDepth)
                 type.depth = maxDepth;
             type.flags |= setFlag;
@@ -525,11 +648,8 @@ public class YetiType implements YetiParser {
                 current = null;
             }
         } catch (TypeException ex) {
-            if (current != null) {
-                ex.trace.add(current);
-                ex.trace.add(partial);
-                ex.trace.add(src);
-            }
+            if (current != null)
+                ex.addTrace(current, partial, src);
             throw ex;
         }
     }
@@ -537,6 +657,8 @@ public class YetiType implements YetiParser {
     static void unifyMembers(YType a, YType b) throws TypeException {
         YType oldRef = b.ref;
         Object currentField = null;
+        TypeTrail.save(a);
+        TypeTrail.save(b);
         try {
             b.ref = a; // just fake ref now to avoid cycles...
             Map ff;
@@ -581,6 +703,7 @@ public class YetiType implements YetiParser {
                         if (t.field != f.field) {
                             if (t.field == 0)
                                 entry.setValue(t = f);
+                            TypeTrail.save(t);
                             t.field = FIELD_NON_POLYMORPHIC;
                         }
                     } else {
@@ -633,11 +756,8 @@ public class YetiType implements YetiParser {
                 limitDepth(a, a.param[0].depth, FL_TAINTED_VAR);
         } catch (TypeException ex) {
             b.ref = oldRef;
-            if (currentField != null) {
-                ex.trace.add(currentField);
-                ex.trace.add(a);
-                ex.trace.add(b);
-            }
+            if (currentField != null)
+                ex.addTrace(currentField, a, b);
             throw ex;
         }
     }
@@ -678,6 +798,7 @@ public class YetiType implements YetiParser {
                         Iterator i = type.allowedMembers.values().iterator();
                         while (i.hasNext())
                             requireOrdered((YType) i.next());
+                        TypeTrail.save(type);
                         type.flags |= FL_ORDERED_REQUIRED;
                     }
                 }
@@ -689,8 +810,10 @@ public class YetiType implements YetiParser {
             case VAR:
                 if (type.ref != null)
                     requireOrdered(type.ref);
-                else
+                else {
+                    TypeTrail.save(type);
                     type.flags |= FL_ORDERED_REQUIRED;
+                }
             case NUM:
             case STR:
             case LIST_MARKER:
@@ -709,24 +832,51 @@ public class YetiType implements YetiParser {
         throw ex;
     }
 
-    static void occursCheck(YType type, YType var) throws TypeException {
+    private static TypeException cyclicType() {
+        TypeException ex = new TypeException("Cyclic types are not allowed");
+        ex.special = true;
+        return ex;
+    }
+
+    /*
+     * Does the occurs check and the depth limiting of unifyToVar in
+     * a single walk. The occurs check doesn't look into structures and
+     * variants (those may be recursive), but the depth limit does.
+     */
+    private static void bindCheck(YType type, YType var, boolean occurs,
+                                  int maxDepth, int setFlag)
+            throws TypeException {
         type = type.deref();
-        if (type == var) {
-            TypeException ex =
-                new TypeException("Cyclic types are not allowed");
-            ex.special = true;
-            throw ex;
+        if (type.type == VAR) {
+            if (type == var && occurs)
+                throw cyclicType();
+            if (type.depth > maxDepth || (type.flags & setFlag) != setFlag) {
+                TypeTrail.save(type);
+                if (type.depth > maxDepth)
+                    type.depth = maxDepth;
+                type.flags |= setFlag;
+            }
+            return;
+        }
+        YType[] param = type.param;
+        if (param.length == 0 || type.seen)
+            return;
+        if (occurs && (type.type == VARIANT || type.type == STRUCT))
+            occurs = false;
+        type.seen = true;
+        try {
+            for (int i = param.length; --i >= 0;)
+                bindCheck(param[i], var, occurs, maxDepth, setFlag);
+        } finally {
+            type.seen = false;
         }
-        if (type.param != null && type.type != VARIANT && type.type != STRUCT)
-            for (int i = type.param.length; --i >= 0;)
-                occursCheck(type.param[i], var);
     }
 
     static void unifyToVar(YType var, YType from) throws TypeException {
-        occursCheck(from, var);
+        bindCheck(from, var, true, var.depth, var.flags & FL_TAINTED_VAR);
         if ((var.flags & FL_ORDERED_REQUIRED) != 0)
             requireOrdered(from);
-        limitDepth(from, var.depth, var.flags & FL_TAINTED_VAR);
+        TypeTrail.save(var);
         var.ref = from;
     }
 
@@ -751,6 +901,7 @@ public class YetiType implements YetiParser {
                      (b.flags & FL_AMBIGUOUS_OPAQUE) != 0)
                 opaque = b;
             if (opaque != null) {
+                TypeTrail.save(opaque);
                 opaque.ref = (YType) opaque.allowedMembers.values().toArray()[0];
                 opaque.type = 0;
                 unify(a, b);
@@ -774,12 +925,31 @@ public class YetiType implements YetiParser {
                 unify(a.param[i], b.param[i]);
             if (a.type >= OPAQUE_TYPES &&
                 (a.flags & b.flags & FL_AMBIGUOUS_OPAQUE) == 0) {
+                TypeTrail.save(a);
+                TypeTrail.save(b);
                 a.flags &= ~FL_AMBIGUOUS_OPAQUE;
                 b.flags &= ~FL_AMBIGUOUS_OPAQUE;
             }
         }
     }
 
+    /*
+     * Speculative unification for probes, where failure just means
+     * taking another way. A failed probe leaves the types as they were.
+     */
+    static boolean tryUnify(YType a, YType b) {
+        TypeTrail trail = TypeTrail.begin();
+        try {
+            unify(a, b);
+            trail.commit();
+            return true;
+        } catch (TypeException ex) {
+            return false;
+        } finally {
+            trail.rollback(); // no-op after commit
+        }
+    }
+
     static void unify(YType a, YType b, Node where, Scope scope,
                       YType param1, YType param2, String error) {
         try {
@@ -853,8 +1023,20 @@ public class YetiType implements YetiParser {
             res.ref = copy;
         }
         known.put(type, res);
+        boolean ground = true;
         for (int i = param.length; --i >= 0;)
-            param[i] = copyType(type.param[i], free, known);
+            if ((param[i] = copyType(type.param[i], free, known))
+                    != type.param[i])
+                ground = false;
+        // Nothing free was reachable through plain type constructor,
+        // so the original can be shared instead of the fresh copy.
+        // Any cycle back to this node would have used the copy and
+        // made some parameter differ, so the copy isn't referenced.
+        if (ground && res == copy && type.type < OPAQUE_TYPES &&
+                type.requiredMembers == null && type.allowedMembers == null) {
+            known.put(type, type_);
+            return type_;
+        }
         if (type.requiredMembers != null) {
             copy.flags = type.flags & (FL_ANY_CASE | FL_FLEX_TYPEDEF);
             copy.requiredMembers = copyTypeMap(type.requiredMembers, free, known);
@@ -866,8 +1048,67 @@ public class YetiType implements YetiParser {
         return res;
     }
 
+    /*
+     * Identity substitution for instantiating the free type variables.
+     * The free variable lists are short, so scanning a pair of arrays
+     * is cheaper than allocating and hashing an IdentityHashMap on
+     * every polymorphic reference.
+     */
+    static final class FreeVars extends AbstractMap {
+        private YType[] from;
+        private YType[] to;
+        private int size;
+
+        FreeVars(int capacity) {
+            from = new YType[capacity < 4 ? 4 : capacity];
+            to = new YType[from.length];
+        }
+
+        public Object get(Object key) {
+            for (int i = size; --i >= 0;)
+                if (from[i] == key)
+                    return to[i];
+            return null;
+        }
+
+        public boolean containsKey(Object key) {
+            return get(key) != null;
+        }
+
+        public Object put(Object key, Object value) {
+            for (int i = size; --i >= 0;)
+                if (from[i] == key) {
+                    Object old = to[i];
+                    to[i] = (YType) value;
+                    return old;
+                }
+            if (size == from.length) {
+                YType[] a = new YType[size * 2];
+                System.arraycopy(from, 0, a, 0, size);
+                from = a;
+                a = new YType[size * 2];
+                System.arraycopy(to, 0, a, 0, size);
+                to = a;
+            }
+            from[size] = (YType) key;
+            to[size++] = (YType) value;
+            return null;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public Set entrySet() {
+            Map m = new IdentityHashMap(size);
+            for (int i = 0; i < size; ++i)
+                m.put(from[i], to[i]);
+            return m.entrySet();
+        }
+    }
+
     static Map createFreeVars(YType[] freeTypes, int depth) {
-        IdentityHashMap vars = new IdentityHashMap(freeTypes.length);
+        FreeVars vars = new FreeVars(freeTypes.length);
         for (int i = freeTypes.length; --i >= 0;) {
             YType free = freeTypes[i];
             YType t = new YType(depth);